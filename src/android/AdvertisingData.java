@@ -0,0 +1,250 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Parses the AD structures in a scan record into typed fields.
+ * https://www.bluetooth.com/specifications/assigned-numbers/generic-access-profile
+ */
+class AdvertisingData {
+
+    // GAP data types
+    private static final int FLAGS = 0x01;
+    private static final int INCOMPLETE_16_BIT_UUIDS = 0x02;
+    private static final int COMPLETE_16_BIT_UUIDS = 0x03;
+    private static final int INCOMPLETE_32_BIT_UUIDS = 0x04;
+    private static final int COMPLETE_32_BIT_UUIDS = 0x05;
+    private static final int INCOMPLETE_128_BIT_UUIDS = 0x06;
+    private static final int COMPLETE_128_BIT_UUIDS = 0x07;
+    private static final int SHORTENED_LOCAL_NAME = 0x08;
+    private static final int COMPLETE_LOCAL_NAME = 0x09;
+    private static final int TX_POWER_LEVEL = 0x0A;
+    private static final int SERVICE_DATA_16_BIT = 0x16;
+    private static final int SERVICE_DATA_32_BIT = 0x20;
+    private static final int SERVICE_DATA_128_BIT = 0x21;
+    private static final int MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] bytes;
+
+    private int flags = -1;
+    private String localName;
+    private Integer txPowerLevel;
+    private List<String> serviceUUIDs = new ArrayList<String>();
+    private Map<String, byte[]> serviceData = new LinkedHashMap<String, byte[]>();
+    private Map<Integer, byte[]> manufacturerData = new LinkedHashMap<Integer, byte[]>();
+
+    private JSONObject json;
+
+    private AdvertisingData(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    static AdvertisingData parse(byte[] scanRecord) {
+        AdvertisingData data = new AdvertisingData(scanRecord);
+        int index = 0;
+
+        while (index < scanRecord.length) {
+            int length = scanRecord[index] & 0xFF;
+            if (length == 0 || index + 1 + length > scanRecord.length) {
+                break; // zero padding or truncated structure
+            }
+
+            int type = scanRecord[index + 1] & 0xFF;
+            int start = index + 2;
+            int end = index + 1 + length;
+            data.parseStructure(type, scanRecord, start, end);
+
+            index = end;
+        }
+
+        return data;
+    }
+
+    /**
+     * True if this was parsed from the same bytes, so the result can be reused
+     */
+    boolean isParsedFrom(byte[] scanRecord) {
+        return bytes == scanRecord || Arrays.equals(bytes, scanRecord);
+    }
+
+    // uuid in the format returned by UUIDHelper.uuidToString
+    boolean hasServiceUUID(String uuid) {
+        for (String serviceUUID : serviceUUIDs) {
+            if (serviceUUID.equalsIgnoreCase(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void parseStructure(int type, byte[] record, int start, int end) {
+        switch (type) {
+            case FLAGS:
+                if (end > start) {
+                    flags = record[start] & 0xFF;
+                }
+                break;
+            case INCOMPLETE_16_BIT_UUIDS:
+            case COMPLETE_16_BIT_UUIDS:
+                for (int i = start; i + 2 <= end; i += 2) {
+                    serviceUUIDs.add(uuid16ToString(record, i));
+                }
+                break;
+            case INCOMPLETE_32_BIT_UUIDS:
+            case COMPLETE_32_BIT_UUIDS:
+                for (int i = start; i + 4 <= end; i += 4) {
+                    serviceUUIDs.add(uuid32ToString(record, i));
+                }
+                break;
+            case INCOMPLETE_128_BIT_UUIDS:
+            case COMPLETE_128_BIT_UUIDS:
+                for (int i = start; i + 16 <= end; i += 16) {
+                    serviceUUIDs.add(uuid128ToString(record, i));
+                }
+                break;
+            case SHORTENED_LOCAL_NAME:
+                if (localName == null) {
+                    localName = new String(record, start, end - start, UTF8);
+                }
+                break;
+            case COMPLETE_LOCAL_NAME:
+                localName = new String(record, start, end - start, UTF8);
+                break;
+            case TX_POWER_LEVEL:
+                if (end > start) {
+                    txPowerLevel = (int) record[start]; // signed dBm
+                }
+                break;
+            case SERVICE_DATA_16_BIT:
+                if (end - start >= 2) {
+                    serviceData.put(uuid16ToString(record, start), Arrays.copyOfRange(record, start + 2, end));
+                }
+                break;
+            case SERVICE_DATA_32_BIT:
+                if (end - start >= 4) {
+                    serviceData.put(uuid32ToString(record, start), Arrays.copyOfRange(record, start + 4, end));
+                }
+                break;
+            case SERVICE_DATA_128_BIT:
+                if (end - start >= 16) {
+                    serviceData.put(uuid128ToString(record, start), Arrays.copyOfRange(record, start + 16, end));
+                }
+                break;
+            case MANUFACTURER_SPECIFIC_DATA:
+                if (end - start >= 2) {
+                    int companyId = (record[start] & 0xFF) | ((record[start + 1] & 0xFF) << 8);
+                    manufacturerData.put(companyId, Arrays.copyOfRange(record, start + 2, end));
+                }
+                break;
+            default:
+                // ignore other types, they are still available in the raw advertising data
+                break;
+        }
+    }
+
+    // 16 bit UUIDs use the short form, the same as UUIDHelper.uuidToString
+    private static String uuid16ToString(byte[] record, int offset) {
+        char[] chars = new char[4];
+        appendHex(chars, 0, record[offset + 1]);
+        appendHex(chars, 2, record[offset]);
+        return new String(chars);
+    }
+
+    private static String uuid32ToString(byte[] record, int offset) {
+        char[] chars = new char[8];
+        for (int i = 0; i < 4; i++) {
+            appendHex(chars, i * 2, record[offset + 3 - i]);
+        }
+        return new String(chars) + UUIDHelper.UUID_BASE.substring(8);
+    }
+
+    private static String uuid128ToString(byte[] record, int offset) {
+        long msb = 0;
+        long lsb = 0;
+        // little endian in the advertisement
+        for (int i = 15; i >= 8; i--) {
+            msb = (msb << 8) | (record[offset + i] & 0xFF);
+        }
+        for (int i = 7; i >= 0; i--) {
+            lsb = (lsb << 8) | (record[offset + i] & 0xFF);
+        }
+        return UUIDHelper.uuidToString(new UUID(msb, lsb));
+    }
+
+    private static void appendHex(char[] chars, int index, byte b) {
+        chars[index] = HEX[(b >> 4) & 0x0F];
+        chars[index + 1] = HEX[b & 0x0F];
+    }
+
+    // Built once and reused, the JSON is never modified after it is created
+    JSONObject asJSONObject() {
+        if (json != null) {
+            return json;
+        }
+
+        JSONObject object = new JSONObject();
+
+        try {
+            if (flags >= 0) {
+                object.put("flags", flags);
+            }
+            if (localName != null) {
+                object.put("localName", localName);
+            }
+            if (txPowerLevel != null) {
+                object.put("txPowerLevel", txPowerLevel.intValue());
+            }
+            if (!serviceUUIDs.isEmpty()) {
+                JSONArray uuids = new JSONArray();
+                for (String uuid : serviceUUIDs) {
+                    uuids.put(uuid);
+                }
+                object.put("serviceUUIDs", uuids);
+            }
+            if (!serviceData.isEmpty()) {
+                JSONObject data = new JSONObject();
+                for (Map.Entry<String, byte[]> entry : serviceData.entrySet()) {
+                    data.put(entry.getKey(), Peripheral.byteArrayToJSON(entry.getValue()));
+                }
+                object.put("serviceData", data);
+            }
+            if (!manufacturerData.isEmpty()) {
+                JSONObject data = new JSONObject();
+                for (Map.Entry<Integer, byte[]> entry : manufacturerData.entrySet()) {
+                    data.put(String.valueOf(entry.getKey()), Peripheral.byteArrayToJSON(entry.getValue()));
+                }
+                object.put("manufacturerData", data);
+            }
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+
+        json = object;
+        return json;
+    }
+}
@@ -28,6 +28,12 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -37,10 +43,14 @@ import android.content.pm.PackageManager;
 import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Build;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
 
 import android.provider.Settings;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
+import android.util.Base64;
 import android.util.Log;
 
 import org.apache.cordova.CallbackContext;
@@ -71,23 +81,42 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     private static final String STOP_SCAN = "stopScan";
     private static final String START_SCAN_WITH_OPTIONS = "startScanWithOptions";
     private static final String BONDED_DEVICES = "bondedDevices";
+    private static final String PERIPHERAL_REGISTRY_STATS = "peripheralRegistryStats";
+    private static final String START_SCAN_SESSION = "startScanSession";
+    private static final String STOP_SCAN_SESSION = "stopScanSession";
+    private static final String GET_SCAN_STATS = "getScanStats";
     private static final String LIST = "list";
 
     private static final String CONNECT = "connect";
+    private static final String CONNECT_WITH_OPTIONS = "connectWithOptions";
     private static final String AUTOCONNECT = "autoConnect";
     private static final String DISCONNECT = "disconnect";
 
     private static final String REQUEST_MTU = "requestMtu";
+    private static final String REQUEST_CONNECTION_PRIORITY = "requestConnectionPriority";
+    private static final String SET_PREFERRED_PHY = "setPreferredPhy";
     private static final String REFRESH_DEVICE_CACHE = "refreshDeviceCache";
 
     private static final String READ = "read";
     private static final String WRITE = "write";
     private static final String WRITE_WITHOUT_RESPONSE = "writeWithoutResponse";
+    private static final String WRITE_STREAM = "writeStream";
+    private static final String RELIABLE_WRITE = "reliableWrite";
 
     private static final String READ_RSSI = "readRSSI";
+    private static final String READ_MANY = "readMany";
 
     private static final String START_NOTIFICATION = "startNotification"; // register for characteristic notification
     private static final String STOP_NOTIFICATION = "stopNotification"; // remove characteristic notification
+    private static final String NOTIFICATION_ACK = "notificationAck";
+    private static final String GET_NOTIFICATION_STATS = "getNotificationStats";
+    private static final String GET_CACHE_STATS = "getCacheStats";
+
+    private static final String START_RECORDING = "startRecording";
+    private static final String STOP_RECORDING = "stopRecording";
+    private static final String READ_RECORDING = "readRecording";
+    private static final String DELETE_RECORDING = "deleteRecording";
+    private static final String RECORDINGS_DIRECTORY = "ble-recordings";
 
     private static final String IS_ENABLED = "isEnabled";
     private static final String IS_CONNECTED  = "isConnected";
@@ -99,7 +128,6 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     private static final String STOP_STATE_NOTIFICATIONS = "stopStateNotifications";
 
     // callbacks
-    CallbackContext discoverCallback;
     private CallbackContext enableBluetoothCallback;
 
     public static final String MAC_ADDRESS = "MAC_ADDRESS";
@@ -111,12 +139,32 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
     private static BluetoothAdapter bluetoothAdapter;
 
-    // key is the MAC Address
-    static Map<String, Peripheral> peripherals = new LinkedHashMap<String, Peripheral>();
+    // key is the MAC Address, safe to use from any thread
+    static PeripheralRegistry peripherals = new PeripheralRegistry();
     static String macAddress;
 
-    // scan options
-    boolean reportDuplicates = false;
+    // Scan sessions by id. All sessions share one hardware scan, configured for the union of their filters.
+    // activeSessions is a copy for the scan callbacks, which can run on any thread.
+    private final Map<String, ScanSession> scanSessions = new LinkedHashMap<String, ScanSession>();
+    private volatile ScanSession[] activeSessions = new ScanSession[0];
+    private volatile ScanConfiguration hardwareScan;
+    private Handler scanHandler = new Handler(Looper.getMainLooper());
+
+    // turns the hardware scan on and off for duty cycling, and switches its mode
+    private final ScanScheduler scanScheduler = new ScanScheduler(scanHandler, new ScanScheduler.Scanner() {
+        @Override
+        public void startScan(int scanMode) {
+            startLeScan(scanMode);
+        }
+
+        @Override
+        public void stopScan() {
+            stopLeScan();
+        }
+    });
+
+    // BluetoothLeScanner is used for batching, filters and shared scans
+    private ScanCallback scannerCallback;
 
     // Android 23 requires new permissions for BluetoothLeScanner.startScan()
     private static final String ACCESS_COARSE_LOCATION = Manifest.permission.ACCESS_COARSE_LOCATION;
@@ -124,8 +172,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     private static final int REQUEST_ACCESS_COARSE_LOCATION = 2;
     private static final int REQUEST_EXTERNAL_STORAGE = 3;
     private CallbackContext permissionCallback;
-    private UUID[] serviceUUIDs;
-    private int scanSeconds;
+    private ScanSession pendingScanSession;
 
     // Bluetooth state notification
     CallbackContext stateCallback;
@@ -139,10 +186,12 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
     public void onDestroy() {
         removeStateListener();
+        stopAllScanSessions();
     }
 
     public void onReset() {
         removeStateListener();
+        stopAllScanSessions();
     }
 
     @Override
@@ -202,18 +251,18 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
             UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
             int scanSeconds = args.getInt(1);
-            resetScanOptions();
-            findLowEnergyDevices(callbackContext, serviceUUIDs, scanSeconds);
+            ScanSession session = new ScanSession(ScanSession.DEFAULT_ID, callbackContext, scanHandler, serviceUUIDs, null, null);
+            session.duration = scanSeconds * 1000L;
+            findLowEnergyDevices(session);
 
         } else if (action.equals(START_SCAN)) {
 
             UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
-            resetScanOptions();
-            findLowEnergyDevices(callbackContext, serviceUUIDs, -1);
+            findLowEnergyDevices(new ScanSession(ScanSession.DEFAULT_ID, callbackContext, scanHandler, serviceUUIDs, null, null));
 
         } else if (action.equals(STOP_SCAN)) {
 
-            bluetoothAdapter.stopLeScan(this);
+            stopScanSession(ScanSession.DEFAULT_ID);
             callbackContext.success();
 
         } else if (action.equals(LIST)) {
@@ -223,7 +272,12 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         } else if (action.equals(CONNECT)) {
 
             macAddress = args.getString(0);
-            connect(callbackContext, macAddress);
+            connect(callbackContext, macAddress, null);
+
+        } else if (action.equals(CONNECT_WITH_OPTIONS)) {
+
+            macAddress = args.getString(0);
+            connect(callbackContext, macAddress, args.optJSONObject(1));
 
         } else if (action.equals(AUTOCONNECT)) {
 
@@ -241,6 +295,18 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
             int mtuValue = args.getInt(1);
             requestMtu(callbackContext, macAddress, mtuValue);
 
+        } else if (action.equals(REQUEST_CONNECTION_PRIORITY)) {
+
+            String macAddress = args.getString(0);
+            String priority = args.getString(1);
+            requestConnectionPriority(callbackContext, macAddress, priority);
+
+        } else if (action.equals(SET_PREFERRED_PHY)) {
+
+            String macAddress = args.getString(0);
+            String phy = args.getString(1);
+            setPreferredPhy(callbackContext, macAddress, phy);
+
         } else if (action.equals(REFRESH_DEVICE_CACHE)) {
 
             String macAddress = args.getString(0);
@@ -253,12 +319,21 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
             String macAddress = args.getString(0);
             UUID serviceUUID = uuidFromString(args.getString(1));
             UUID characteristicUUID = uuidFromString(args.getString(2));
-            read(callbackContext, macAddress, serviceUUID, characteristicUUID);
+            JSONObject options = args.optJSONObject(3);
+            read(callbackContext, macAddress, serviceUUID, characteristicUUID, options);
+
+        } else if (action.equals(READ_MANY)) {
+
+            String macAddress = args.getString(0);
+            JSONArray characteristics = args.getJSONArray(1);
+            JSONObject options = args.optJSONObject(2);
+            readMany(callbackContext, macAddress, characteristics, options);
 
         } else if (action.equals(READ_RSSI)) {
 
             String macAddress = args.getString(0);
-            readRSSI(callbackContext, macAddress);
+            JSONObject options = args.optJSONObject(1);
+            readRSSI(callbackContext, macAddress, options);
 
         } else if (action.equals(WRITE)) {
 
@@ -267,7 +342,8 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
             UUID characteristicUUID = uuidFromString(args.getString(2));
             byte[] data = args.getArrayBuffer(3);
             int type = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
-            write(callbackContext, macAddress, serviceUUID, characteristicUUID, data, type);
+            JSONObject options = args.optJSONObject(4);
+            write(callbackContext, macAddress, serviceUUID, characteristicUUID, data, type, options);
 
         } else if (action.equals(WRITE_WITHOUT_RESPONSE)) {
 
@@ -276,21 +352,93 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
             UUID characteristicUUID = uuidFromString(args.getString(2));
             byte[] data = args.getArrayBuffer(3);
             int type = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
-            write(callbackContext, macAddress, serviceUUID, characteristicUUID, data, type);
+            JSONObject options = args.optJSONObject(4);
+            write(callbackContext, macAddress, serviceUUID, characteristicUUID, data, type, options);
+
+        } else if (action.equals(WRITE_STREAM)) {
+
+            String macAddress = args.getString(0);
+            UUID serviceUUID = uuidFromString(args.getString(1));
+            UUID characteristicUUID = uuidFromString(args.getString(2));
+            byte[] data = args.getArrayBuffer(3);
+            JSONObject options = args.optJSONObject(4);
+            writeStream(callbackContext, macAddress, serviceUUID, characteristicUUID, data, options);
+
+        } else if (action.equals(RELIABLE_WRITE)) {
+
+            String macAddress = args.getString(0);
+            JSONArray writes = args.getJSONArray(1);
+            JSONObject options = args.optJSONObject(2);
+            reliableWrite(callbackContext, macAddress, writes, options);
 
         } else if (action.equals(START_NOTIFICATION)) {
 
             String macAddress = args.getString(0);
             UUID serviceUUID = uuidFromString(args.getString(1));
             UUID characteristicUUID = uuidFromString(args.getString(2));
-            registerNotifyCallback(callbackContext, macAddress, serviceUUID, characteristicUUID);
+            JSONObject options = args.optJSONObject(3);
+            registerNotifyCallback(callbackContext, macAddress, serviceUUID, characteristicUUID, options);
 
         } else if (action.equals(STOP_NOTIFICATION)) {
 
             String macAddress = args.getString(0);
             UUID serviceUUID = uuidFromString(args.getString(1));
             UUID characteristicUUID = uuidFromString(args.getString(2));
-            removeNotifyCallback(callbackContext, macAddress, serviceUUID, characteristicUUID);
+            JSONObject options = args.optJSONObject(3);
+            removeNotifyCallback(callbackContext, macAddress, serviceUUID, characteristicUUID, options);
+
+        } else if (action.equals(NOTIFICATION_ACK)) {
+
+            // no reply, it would be another message over the bridge
+            Peripheral peripheral = peripherals.get(args.getString(0));
+            if (peripheral != null) {
+                peripheral.acknowledgeNotification(uuidFromString(args.getString(1)), uuidFromString(args.getString(2)));
+            }
+
+        } else if (action.equals(GET_NOTIFICATION_STATS)) {
+
+            String macAddress = args.getString(0);
+            UUID serviceUUID = uuidFromString(args.getString(1));
+            UUID characteristicUUID = uuidFromString(args.getString(2));
+            getNotificationStats(callbackContext, macAddress, serviceUUID, characteristicUUID);
+
+        } else if (action.equals(GET_CACHE_STATS)) {
+
+            String macAddress = args.getString(0);
+            Peripheral peripheral = peripherals.get(macAddress);
+            if (peripheral != null) {
+                callbackContext.success(peripheral.getCacheStats());
+            } else {
+                callbackContext.error("Peripheral " + macAddress + " not found");
+            }
+
+        } else if (action.equals(START_RECORDING)) {
+
+            String macAddress = args.getString(0);
+            JSONArray characteristics = args.getJSONArray(1);
+            JSONObject options = args.optJSONObject(2);
+            startRecording(callbackContext, macAddress, characteristics, options);
+
+        } else if (action.equals(STOP_RECORDING)) {
+
+            String macAddress = args.getString(0);
+            Peripheral peripheral = peripherals.get(macAddress);
+            if (peripheral != null) {
+                peripheral.stopRecording(callbackContext);
+            } else {
+                callbackContext.error("Peripheral " + macAddress + " not found");
+            }
+
+        } else if (action.equals(READ_RECORDING)) {
+
+            String recordingId = args.getString(0);
+            JSONObject cursor = args.optJSONObject(1);
+            JSONObject options = args.optJSONObject(2);
+            readRecording(callbackContext, recordingId, cursor, options);
+
+        } else if (action.equals(DELETE_RECORDING)) {
+
+            deleteRecording(callbackContext, args.getString(0));
 
         } else if (action.equals(IS_ENABLED)) {
 
@@ -304,7 +452,8 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
             String macAddress = args.getString(0);
 
-            if (peripherals.containsKey(macAddress) && peripherals.get(macAddress).isConnected()) {
+            Peripheral peripheral = peripherals.get(macAddress);
+            if (peripheral != null && peripheral.isConnected()) {
                 callbackContext.success();
             } else {
                 callbackContext.error("Not connected.");
@@ -347,15 +496,32 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         } else if (action.equals(START_SCAN_WITH_OPTIONS)) {
             UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
             JSONObject options = args.getJSONObject(1);
+            startScanSession(callbackContext, ScanSession.DEFAULT_ID, serviceUUIDs, options);
 
-            resetScanOptions();
-            this.reportDuplicates = options.optBoolean("reportDuplicates", false);
-            findLowEnergyDevices(callbackContext, serviceUUIDs, -1);
+        } else if (action.equals(START_SCAN_SESSION)) {
+
+            String sessionId = args.getString(0);
+            UUID[] serviceUUIDs = parseServiceUUIDList(args.getJSONArray(1));
+            JSONObject options = args.optJSONObject(2);
+            startScanSession(callbackContext, sessionId, serviceUUIDs, options);
+
+        } else if (action.equals(STOP_SCAN_SESSION)) {
+
+            stopScanSession(args.getString(0));
+            callbackContext.success();
+
+        } else if (action.equals(GET_SCAN_STATS)) {
+
+            callbackContext.success(getScanStats());
 
         } else if (action.equals(BONDED_DEVICES)) {
 
             getBondedDevices(callbackContext);
 
+        } else if (action.equals(PERIPHERAL_REGISTRY_STATS)) {
+
+            callbackContext.success(peripherals.getStats());
+
         } else {
 
             validAction = false;
@@ -441,7 +607,8 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         this.stateReceiver = null;
     }
 
-    private void connect(CallbackContext callbackContext, String macAddress) {
+    // options are null for connect
+    private void connect(CallbackContext callbackContext, String macAddress, JSONObject options) {
         if (!peripherals.containsKey(macAddress) && BLECentralPlugin.this.bluetoothAdapter.checkBluetoothAddress(macAddress)) {
             BluetoothDevice device = BLECentralPlugin.this.bluetoothAdapter.getRemoteDevice(macAddress);
             Peripheral peripheral = new Peripheral(device);
@@ -450,6 +617,28 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
         Peripheral peripheral = peripherals.get(macAddress);
         if (peripheral != null) {
+            if (options == null) {
+                options = new JSONObject();
+            }
+
+            int mtu = options.optInt("mtu", 0);
+            int connectionPriority = -1;
+            String phy = options.has("phy") ? options.optString("phy") : null;
+            try {
+                if (options.has("connectionPriority")) {
+                    connectionPriority = Peripheral.parseConnectionPriority(options.optString("connectionPriority"));
+                }
+                if (phy != null) {
+                    Peripheral.phyMask(phy);
+                }
+            } catch (IllegalArgumentException e) {
+                callbackContext.error("Invalid connect options: " + e.getMessage());
+                return;
+            }
+
+            peripheral.setCommandTimeout(options.optLong("commandTimeout", Peripheral.DEFAULT_COMMAND_TIMEOUT),
+                    options.optBoolean("resetOnTimeout", false));
+            peripheral.setConnectParameters(mtu, connectionPriority, phy);
             peripheral.connect(callbackContext, cordova.getActivity(), false);
         } else {
             callbackContext.error("Peripheral " + macAddress + " not found.");
@@ -472,6 +661,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
             }
         }
 
+        peripheral.setConnectParameters(0, -1, null);
         peripheral.connect(callbackContext, cordova.getActivity(), true);
 
     }
@@ -492,11 +682,56 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
     private void requestMtu(CallbackContext callbackContext, String macAddress, int mtuValue) {
 
-        Peripheral peripheral = peripherals.get(macAddress);
+        Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
         if (peripheral != null) {
-            peripheral.requestMtu(mtuValue);
+            peripheral.queueRequestMtu(callbackContext, mtuValue, null);
+        }
+    }
+
+    private void requestConnectionPriority(CallbackContext callbackContext, String macAddress, String priority) {
+
+        Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
+        if (peripheral == null) {
+            return;
+        }
+
+        try {
+            peripheral.queueRequestConnectionPriority(callbackContext, Peripheral.parseConnectionPriority(priority), null);
+        } catch (IllegalArgumentException e) {
+            callbackContext.error(e.getMessage());
         }
-        callbackContext.success();
+    }
+
+    private void setPreferredPhy(CallbackContext callbackContext, String macAddress, String phy) {
+
+        Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
+        if (peripheral == null) {
+            return;
+        }
+
+        try {
+            peripheral.queueSetPreferredPhy(callbackContext, phy, null);
+        } catch (IllegalArgumentException e) {
+            callbackContext.error(e.getMessage());
+        }
+    }
+
+    // the connected peripheral, or null after sending the error
+    private Peripheral connectedPeripheral(CallbackContext callbackContext, String macAddress) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return null;
+        }
+
+        if (!peripheral.isConnected()) {
+            callbackContext.error("Peripheral " + macAddress + " is not connected.");
+            return null;
+        }
+
+        return peripheral;
     }
 
     private void refreshDeviceCache(CallbackContext callbackContext, String macAddress, long timeoutMillis) {
@@ -512,7 +747,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         }
     }
 
-    private void read(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID) {
+    private void read(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID, JSONObject options) {
 
         Peripheral peripheral = peripherals.get(macAddress);
 
@@ -527,11 +762,11 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         }
 
         //peripheral.readCharacteristic(callbackContext, serviceUUID, characteristicUUID);
-        peripheral.queueRead(callbackContext, serviceUUID, characteristicUUID);
+        peripheral.queueRead(callbackContext, serviceUUID, characteristicUUID, options);
 
     }
 
-    private void readRSSI(CallbackContext callbackContext, String macAddress) {
+    private void readRSSI(CallbackContext callbackContext, String macAddress, JSONObject options) {
 
         Peripheral peripheral = peripherals.get(macAddress);
 
@@ -544,11 +779,11 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
             callbackContext.error("Peripheral " + macAddress + " is not connected.");
             return;
         }
-        peripheral.queueReadRSSI(callbackContext);
+        peripheral.queueReadRSSI(callbackContext, options);
     }
 
     private void write(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID,
-                       byte[] data, int writeType) {
+                       byte[] data, int writeType, JSONObject options) {
 
         Peripheral peripheral = peripherals.get(macAddress);
 
@@ -563,11 +798,150 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         }
 
         //peripheral.writeCharacteristic(callbackContext, serviceUUID, characteristicUUID, data, writeType);
-        peripheral.queueWrite(callbackContext, serviceUUID, characteristicUUID, data, writeType);
+        peripheral.queueWrite(callbackContext, serviceUUID, characteristicUUID, data, writeType, options);
+
+    }
+
+    private void startRecording(CallbackContext callbackContext, String macAddress, JSONArray characteristics, JSONObject options) throws JSONException {
+
+        Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
+        if (peripheral == null) {
+            return;
+        }
 
+        String recordingId = macAddress.replace(":", "") + "-" + System.currentTimeMillis();
+        if (options != null && options.has("id")) {
+            recordingId = options.getString("id");
+        }
+        File directory = recordingDirectory(recordingId);
+        if (directory == null) {
+            callbackContext.error("Invalid recording id " + recordingId);
+            return;
+        }
+
+        List<UUID> serviceUUIDs = new ArrayList<UUID>();
+        List<UUID> characteristicUUIDs = new ArrayList<UUID>();
+        for (int i = 0; i < characteristics.length(); i++) {
+            JSONObject characteristic = characteristics.getJSONObject(i);
+            serviceUUIDs.add(uuidFromString(characteristic.getString("service")));
+            characteristicUUIDs.add(uuidFromString(characteristic.getString("characteristic")));
+        }
+
+        peripheral.startRecording(callbackContext, directory, serviceUUIDs, characteristicUUIDs, options);
+    }
+
+    private void readRecording(CallbackContext callbackContext, String recordingId, JSONObject cursor, JSONObject options) throws JSONException {
+
+        File directory = recordingDirectory(recordingId);
+        if (directory == null || !directory.isDirectory()) {
+            callbackContext.error("Recording " + recordingId + " not found");
+            return;
+        }
+
+        int segment = cursor != null ? cursor.optInt("segment", 0) : 0;
+        int offset = cursor != null ? cursor.optInt("offset", 0) : 0;
+        int maxBytes = options != null ? options.optInt("maxBytes", NotificationRecorder.DEFAULT_PAGE_SIZE) : NotificationRecorder.DEFAULT_PAGE_SIZE;
+
+        try {
+            callbackContext.success(NotificationRecorder.readPage(directory, segment, offset, maxBytes));
+        } catch (IOException e) {
+            callbackContext.error("Can't read recording " + recordingId + ": " + e.getMessage());
+        }
     }
 
-    private void registerNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID) {
+    private void deleteRecording(CallbackContext callbackContext, String recordingId) {
+
+        File directory = recordingDirectory(recordingId);
+        if (directory == null || !directory.isDirectory()) {
+            callbackContext.error("Recording " + recordingId + " not found");
+            return;
+        }
+
+        for (Peripheral peripheral : peripherals.values()) {
+            if (recordingId.equals(peripheral.getRecordingId())) {
+                callbackContext.error("Recording " + recordingId + " is running, stop it first");
+                return;
+            }
+        }
+
+        if (NotificationRecorder.delete(directory)) {
+            callbackContext.success();
+        } else {
+            callbackContext.error("Can't delete recording " + recordingId);
+        }
+    }
+
+    // the directory of a recording, or null if the id could escape the recordings directory
+    private File recordingDirectory(String recordingId) {
+        if (!recordingId.matches("[A-Za-z0-9_.-]+") || recordingId.startsWith(".")) {
+            return null;
+        }
+        return new File(new File(cordova.getActivity().getFilesDir(), RECORDINGS_DIRECTORY), recordingId);
+    }
+
+    private void readMany(CallbackContext callbackContext, String macAddress, JSONArray characteristics, JSONObject options) throws JSONException {
+
+        Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
+        if (peripheral == null) {
+            return;
+        }
+
+        List<UUID> serviceUUIDs = new ArrayList<UUID>();
+        List<UUID> characteristicUUIDs = new ArrayList<UUID>();
+        for (int i = 0; i < characteristics.length(); i++) {
+            JSONObject characteristic = characteristics.getJSONObject(i);
+            serviceUUIDs.add(uuidFromString(characteristic.getString("service")));
+            characteristicUUIDs.add(uuidFromString(characteristic.getString("characteristic")));
+        }
+
+        peripheral.queueReadMany(callbackContext, serviceUUIDs, characteristicUUIDs, options);
+    }
+
+    private void reliableWrite(CallbackContext callbackContext, String macAddress, JSONArray writes, JSONObject options) throws JSONException {
+
+        Peripheral peripheral = connectedPeripheral(callbackContext, macAddress);
+        if (peripheral == null) {
+            return;
+        }
+
+        if (writes.length() == 0) {
+            callbackContext.error("No writes in the reliable write");
+            return;
+        }
+
+        List<UUID> serviceUUIDs = new ArrayList<UUID>();
+        List<UUID> characteristicUUIDs = new ArrayList<UUID>();
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (int i = 0; i < writes.length(); i++) {
+            JSONObject write = writes.getJSONObject(i);
+            serviceUUIDs.add(uuidFromString(write.getString("service")));
+            characteristicUUIDs.add(uuidFromString(write.getString("characteristic")));
+            values.add(Base64.decode(write.getString("value"), Base64.DEFAULT));
+        }
+
+        peripheral.queueReliableWrite(callbackContext, serviceUUIDs, characteristicUUIDs, values, options);
+    }
+
+    private void writeStream(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID,
+                             byte[] data, JSONObject options) {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        if (!peripheral.isConnected()) {
+            callbackContext.error("Peripheral " + macAddress + " is not connected.");
+            return;
+        }
+
+        peripheral.queueWriteStream(callbackContext, serviceUUID, characteristicUUID, data, options);
+
+    }
+
+    private void registerNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID, JSONObject options) {
 
         Peripheral peripheral = peripherals.get(macAddress);
         if (peripheral != null) {
@@ -578,7 +952,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
             }
 
             //peripheral.setOnDataCallback(serviceUUID, characteristicUUID, callbackContext);
-            peripheral.queueRegisterNotifyCallback(callbackContext, serviceUUID, characteristicUUID);
+            peripheral.queueRegisterNotifyCallback(callbackContext, serviceUUID, characteristicUUID, options);
 
         } else {
 
@@ -588,7 +962,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
     }
 
-    private void removeNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID) {
+    private void removeNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID, JSONObject options) {
 
         Peripheral peripheral = peripherals.get(macAddress);
         if (peripheral != null) {
@@ -598,7 +972,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
                 return;
             }
 
-            peripheral.queueRemoveNotifyCallback(callbackContext, serviceUUID, characteristicUUID);
+            peripheral.queueRemoveNotifyCallback(callbackContext, serviceUUID, characteristicUUID, options);
 
         } else {
 
@@ -608,7 +982,62 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
     }
 
-    private void findLowEnergyDevices(CallbackContext callbackContext, UUID[] serviceUUIDs, int scanSeconds) {
+    private void getNotificationStats(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID) throws JSONException {
+
+        Peripheral peripheral = peripherals.get(macAddress);
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found");
+            return;
+        }
+
+        JSONObject stats = peripheral.getNotificationStats(serviceUUID, characteristicUUID);
+        if (stats != null) {
+            callbackContext.success(stats);
+        } else {
+            callbackContext.error("No notifications started for " + characteristicUUID);
+        }
+    }
+
+    // Starts a scan session, replacing the session with the same id
+    private void startScanSession(CallbackContext callbackContext, String sessionId, UUID[] serviceUUIDs, JSONObject options) throws JSONException {
+        if (options == null) {
+            options = new JSONObject();
+        }
+
+        // the known peripherals are shared by all the sessions, the last session that sets the limits wins
+        if (options.has("maxPeripherals") || options.has("peripheralTimeout")) {
+            peripherals.configure(options.optInt("maxPeripherals", 0), options.optLong("peripheralTimeout", 0));
+        }
+
+        List<ScanFilter> filters = null;
+        JSONArray filterList = options.optJSONArray("filters");
+        if (filterList != null && filterList.length() > 0) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                callbackContext.error("Scan filters require Android 5.0 or greater.");
+                return;
+            }
+            try {
+                filters = parseScanFilters(filterList);
+            } catch (IllegalArgumentException e) {
+                callbackContext.error("Invalid scan filter: " + e.getMessage());
+                return;
+            }
+        }
+
+        ScanSession session;
+        try {
+            session = new ScanSession(sessionId, callbackContext, scanHandler, serviceUUIDs, filters, options);
+        } catch (IllegalArgumentException e) {
+            callbackContext.error("Invalid scan options: " + e.getMessage());
+            return;
+        }
+
+        findLowEnergyDevices(session);
+    }
+
+    private void findLowEnergyDevices(ScanSession session) {
+
+        CallbackContext callbackContext = session.callback;
 
         if (!locationServicesEnabled()) {
             callbackContext.error("Location Services are disabled");
@@ -618,8 +1047,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         if(!PermissionHelper.hasPermission(this, ACCESS_COARSE_LOCATION)) {
             // save info so we can call this method again after permissions are granted
             permissionCallback = callbackContext;
-            this.serviceUUIDs = serviceUUIDs;
-            this.scanSeconds = scanSeconds;
+            this.pendingScanSession = session;
             PermissionHelper.requestPermission(this, REQUEST_ACCESS_COARSE_LOCATION, ACCESS_COARSE_LOCATION);
             return;
         }
@@ -627,8 +1055,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         if(!PermissionHelper.hasPermission(this, WRITE_EXTERNAL_STORAGE)) {
             // save info so we can call this method again after permissions are granted
             permissionCallback = callbackContext;
-            this.serviceUUIDs = serviceUUIDs;
-            this.scanSeconds = scanSeconds;
+            this.pendingScanSession = session;
             PermissionHelper.requestPermission(this, REQUEST_EXTERNAL_STORAGE, WRITE_EXTERNAL_STORAGE);
             return;
         }
@@ -640,36 +1067,28 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
             return;
         }
 
-        // clear non-connected cached peripherals
-        for(Iterator<Map.Entry<String, Peripheral>> iterator = peripherals.entrySet().iterator(); iterator.hasNext(); ) {
-            Map.Entry<String, Peripheral> entry = iterator.next();
-            Peripheral device = entry.getValue();
-            boolean connecting = device.isConnecting();
-            if (connecting){
-                LOG.d(TAG, "Not removing connecting device: " + device.getDevice().getAddress());
-            }
-            if(!entry.getValue().isConnected() && !connecting) {
-                iterator.remove();
+        ScanSession previous;
+        synchronized (scanSessions) {
+            if (scanSessions.isEmpty()) {
+                // clear non-connected cached peripherals
+                peripherals.removeDisconnected();
             }
+            previous = scanSessions.put(session.id, session);
+            updateHardwareScan();
         }
-
-        discoverCallback = callbackContext;
-
-        if (serviceUUIDs != null && serviceUUIDs.length > 0) {
-            bluetoothAdapter.startLeScan(serviceUUIDs, this);
-        } else {
-            bluetoothAdapter.startLeScan(this);
+        if (previous != null) {
+            previous.stop();
         }
 
-        if (scanSeconds > 0) {
-            Handler handler = new Handler();
-            handler.postDelayed(new Runnable() {
+        if (session.duration > 0) {
+            final ScanSession expiring = session;
+            scanHandler.postDelayed(new Runnable() {
                 @Override
                 public void run() {
                     LOG.d(TAG, "Stopping Scan");
-                    BLECentralPlugin.this.bluetoothAdapter.stopLeScan(BLECentralPlugin.this);
+                    stopScanSession(expiring);
                 }
-            }, scanSeconds * 1000);
+            }, session.duration);
         }
 
         PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
@@ -677,6 +1096,246 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         callbackContext.sendPluginResult(result);
     }
 
+    private JSONObject getScanStats() throws JSONException {
+        JSONObject sessions = new JSONObject();
+        for (ScanSession session : activeSessions) {
+            sessions.put(session.id, session.stats.asJSONObject());
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("scanning", hardwareScan != null);
+        json.put("registrySize", peripherals.size());
+        json.put("sessions", sessions);
+        return json;
+    }
+
+    private void stopScanSession(String sessionId) {
+        ScanSession session;
+        synchronized (scanSessions) {
+            session = scanSessions.get(sessionId);
+        }
+        if (session != null) {
+            stopScanSession(session);
+        }
+    }
+
+    private void stopScanSession(ScanSession session) {
+        synchronized (scanSessions) {
+            if (scanSessions.get(session.id) != session) {
+                return; // already stopped or replaced
+            }
+            scanSessions.remove(session.id);
+            updateHardwareScan();
+        }
+        session.stop();
+    }
+
+    private void stopAllScanSessions() {
+        List<ScanSession> sessions;
+        synchronized (scanSessions) {
+            sessions = new ArrayList<ScanSession>(scanSessions.values());
+            scanSessions.clear();
+            updateHardwareScan();
+        }
+        for (ScanSession session : sessions) {
+            session.stop();
+        }
+    }
+
+    // Reconfigures the hardware scan for the current sessions, called with scanSessions locked.
+    // The scan is only restarted when the combined configuration changes, Android limits how often apps can start scans.
+    private void updateHardwareScan() {
+        ScanSession[] sessions = scanSessions.values().toArray(new ScanSession[scanSessions.size()]);
+        ScanConfiguration configuration = sessions.length > 0 ? scanConfiguration(sessions) : null;
+
+        if (hardwareScan != null && !hardwareScan.equals(configuration)) {
+            stopHardwareScan(); // flushes batched results to the previous sessions
+        }
+
+        activeSessions = sessions;
+
+        if (configuration != null && hardwareScan == null) {
+            startHardwareScan(configuration);
+        }
+    }
+
+    // The union of the sessions, the scan reports a device if any session wants it
+    private ScanConfiguration scanConfiguration(ScanSession[] sessions) {
+        boolean allDevices = false;
+        boolean anyFilters = false;
+        boolean allBatched = true;
+        boolean anyScanMode = false;
+        boolean allDutyCycled = true;
+        long batchDelay = Long.MAX_VALUE;
+
+        ScanConfiguration configuration = new ScanConfiguration();
+        configuration.scanMode = ScanScheduler.SCAN_MODE_OPPORTUNISTIC;
+        configuration.scanInterval = Long.MAX_VALUE;
+
+        for (ScanSession session : sessions) {
+            allDevices |= session.wantsAllDevices();
+            anyFilters |= session.filters != null;
+            if (session.reportDelay > 0) {
+                batchDelay = Math.min(batchDelay, session.reportDelay);
+            } else {
+                allBatched = false;
+            }
+
+            // the scan has to be good enough for the most demanding session
+            anyScanMode |= session.hasScanMode || session.boostDuration > 0;
+            configuration.scanMode = Math.max(configuration.scanMode, session.scanMode);
+            configuration.boostDuration = Math.max(configuration.boostDuration, session.boostDuration);
+            if (session.isDutyCycled()) {
+                configuration.scanWindow = Math.max(configuration.scanWindow, session.scanWindow);
+                configuration.scanInterval = Math.min(configuration.scanInterval, session.scanInterval);
+            } else {
+                allDutyCycled = false;
+            }
+        }
+
+        if (!allDutyCycled || configuration.scanWindow >= configuration.scanInterval) {
+            configuration.scanWindow = 0;
+            configuration.scanInterval = 0;
+        }
+
+        boolean batched = allBatched && supportsHardwareBatching();
+        boolean lollipop = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
+        // the legacy scan can only filter on the service UUIDs of a single session, and has no scan modes
+        configuration.useScanner = anyFilters || batched || (lollipop && (anyScanMode || (sessions.length > 1 && !allDevices)));
+
+        if (configuration.useScanner) {
+            configuration.reportDelay = batched ? batchDelay : 0;
+            configuration.filters = allDevices ? new ArrayList<ScanFilter>() : scanFilters(sessions);
+        } else {
+            configuration.boostDuration = 0;
+            if (sessions.length == 1) {
+                configuration.serviceUUIDs = sessions[0].serviceUUIDs;
+            }
+        }
+
+        return configuration;
+    }
+
+    @TargetApi(21)
+    private List<ScanFilter> scanFilters(ScanSession[] sessions) {
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        Set<UUID> serviceUUIDs = new LinkedHashSet<UUID>();
+
+        for (ScanSession session : sessions) {
+            if (session.serviceUUIDs != null) {
+                serviceUUIDs.addAll(Arrays.asList(session.serviceUUIDs));
+            }
+            if (session.filters != null) {
+                filters.addAll(session.filters);
+            }
+        }
+
+        for (UUID uuid : serviceUUIDs) {
+            filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+        }
+        return filters;
+    }
+
+    private void startHardwareScan(ScanConfiguration configuration) {
+        hardwareScan = configuration;
+        scanScheduler.schedule(configuration.scanMode, configuration.scanWindow, configuration.scanInterval, configuration.boostDuration);
+    }
+
+    private void stopHardwareScan() {
+        if (hardwareScan == null) {
+            return;
+        }
+        scanScheduler.cancel();
+        hardwareScan = null;
+    }
+
+    // Called by the scanScheduler to turn the radio on
+    private void startLeScan(int scanMode) {
+        ScanConfiguration configuration = hardwareScan;
+        if (configuration == null) {
+            return;
+        }
+
+        if (configuration.useScanner) {
+            startLeScanner(configuration, scanMode);
+        } else if (configuration.serviceUUIDs != null) {
+            bluetoothAdapter.startLeScan(configuration.serviceUUIDs, this);
+        } else {
+            bluetoothAdapter.startLeScan(this);
+        }
+    }
+
+    // Called by the scanScheduler to turn the radio off
+    private void stopLeScan() {
+        if (scannerCallback != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+                if (scanner != null) { // null when Bluetooth is off
+                    scanner.flushPendingScanResults(scannerCallback);
+                    scanner.stopScan(scannerCallback);
+                }
+            }
+            scannerCallback = null;
+        } else {
+            bluetoothAdapter.stopLeScan(this);
+        }
+    }
+
+    private boolean supportsHardwareBatching() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && bluetoothAdapter.isOffloadedScanBatchingSupported();
+    }
+
+    // Filters are handed to the controller so packets that don't match never reach the plugin.
+    // With hardware batching, the controller also collects results and wakes us up once every reportDelay milliseconds.
+    @TargetApi(21)
+    private void startLeScanner(ScanConfiguration configuration, int scanMode) {
+        if (scanMode == ScanSettings.SCAN_MODE_OPPORTUNISTIC && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+        }
+
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .setReportDelay(configuration.reportDelay)
+                .build();
+
+        scannerCallback = new ScannerCallback();
+        bluetoothAdapter.getBluetoothLeScanner().startScan(configuration.filters, settings, scannerCallback);
+    }
+
+    // How the hardware scan was started, compared to decide if the scan needs to be restarted
+    private static class ScanConfiguration {
+        boolean useScanner;
+        long reportDelay;
+        UUID[] serviceUUIDs; // legacy scan only
+        List<ScanFilter> filters; // scanner only, empty for all devices
+        int scanMode;
+        long scanWindow; // 0 to scan all the time
+        long scanInterval;
+        long boostDuration;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ScanConfiguration)) {
+                return false;
+            }
+            ScanConfiguration other = (ScanConfiguration) o;
+            return useScanner == other.useScanner
+                    && reportDelay == other.reportDelay
+                    && scanMode == other.scanMode
+                    && scanWindow == other.scanWindow
+                    && scanInterval == other.scanInterval
+                    && boostDuration == other.boostDuration
+                    && Arrays.equals(serviceUUIDs, other.serviceUUIDs)
+                    && (filters == null ? other.filters == null : filters.equals(other.filters));
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(serviceUUIDs) + (int) reportDelay;
+        }
+    }
+
     private boolean locationServicesEnabled() {
         int locationMode = 0;
         try {
@@ -691,9 +1350,8 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
         JSONArray json = new JSONArray();
 
-        // do we care about consistent order? will peripherals.values() be in order?
-        for (Map.Entry<String, Peripheral> entry : peripherals.entrySet()) {
-            Peripheral peripheral = entry.getValue();
+        // peripherals.values() is in the order the peripherals were added
+        for (Peripheral peripheral : peripherals.values()) {
             if (!peripheral.isUnscanned()) {
                 json.put(peripheral.asJSONObject());
             }
@@ -705,32 +1363,104 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
 
     @Override
     public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        dispatchScanResult(device, rssi, scanRecord, SystemClock.elapsedRealtime(), null);
+    }
 
-        String address = device.getAddress();
-        boolean alreadyReported = peripherals.containsKey(address) && !peripherals.get(address).isUnscanned();
+    // Hands the result to the sessions that want it
+    // elapsedMillis is SystemClock.elapsedRealtime() when the advertisement was received
+    // result is the ScanResult on Android 5.0+, null for the legacy scan
+    private void dispatchScanResult(BluetoothDevice device, int rssi, byte[] scanRecord, long elapsedMillis, ScanResult result) {
+        ScanSession[] sessions = activeSessions;
+        if (sessions.length == 0) {
+            return;
+        }
 
-        if (!alreadyReported) {
+        long start = System.nanoTime();
+        Peripheral peripheral = onDeviceScanned(device, rssi, scanRecord);
 
-            Peripheral peripheral = new Peripheral(device, rssi, scanRecord);
-            peripherals.put(device.getAddress(), peripheral);
+        // a single session gets exactly what the hardware scan was configured for
+        boolean shared = sessions.length > 1;
+        for (ScanSession session : sessions) {
+            if (!shared || session.matches(peripheral, result)) {
+                session.onScanResult(peripheral, rssi, scanRecord, elapsedMillis);
+            }
+        }
 
-            if (discoverCallback != null) {
-                PluginResult result = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
-                result.setKeepCallback(true);
-                discoverCallback.sendPluginResult(result);
+        long micros = (System.nanoTime() - start) / 1000;
+        long now = SystemClock.elapsedRealtime();
+        for (ScanSession session : sessions) {
+            session.stats.onCallback(now, micros);
+        }
+    }
+
+    // Adds or updates the peripheral in the known peripherals
+    private Peripheral onDeviceScanned(BluetoothDevice device, int rssi, byte[] scanRecord) {
+
+        long address = PeripheralRegistry.addressToLong(device.getAddress());
+        Peripheral peripheral = peripherals.get(address);
+
+        if (peripheral == null) {
+            peripheral = new Peripheral(device, rssi, scanRecord);
+            Peripheral existing = peripherals.putIfAbsent(address, peripheral);
+            if (existing == null) {
+                scanScheduler.onNewDevice();
+                return peripheral;
             }
+            peripheral = existing; // another thread added it first
+        }
 
-        } else {
-            Peripheral peripheral = peripherals.get(address);
-            peripheral.update(rssi, scanRecord);
-            if (reportDuplicates && discoverCallback != null) {
-                PluginResult result = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
-                result.setKeepCallback(true);
-                discoverCallback.sendPluginResult(result);
+        peripheral.update(rssi, scanRecord);
+        return peripheral;
+    }
+
+    @TargetApi(21)
+    private class ScannerCallback extends ScanCallback {
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            dispatch(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                dispatch(result);
+            }
+
+            // one send per hardware batch for the sessions that wanted results this often
+            ScanConfiguration configuration = hardwareScan;
+            long reportDelay = configuration != null ? configuration.reportDelay : 0;
+            for (ScanSession session : activeSessions) {
+                if (session.reportDelay <= reportDelay) {
+                    session.flush();
+                }
             }
         }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            LOG.e(TAG, "Scan failed. errorCode = " + errorCode);
+
+            List<ScanSession> sessions;
+            synchronized (scanSessions) {
+                sessions = new ArrayList<ScanSession>(scanSessions.values());
+                scanSessions.clear();
+                activeSessions = new ScanSession[0];
+                stopHardwareScan();
+            }
+            for (ScanSession session : sessions) {
+                session.error("Scan failed. errorCode = " + errorCode);
+            }
+        }
+
+        private void dispatch(ScanResult result) {
+            ScanRecord scanRecord = result.getScanRecord();
+            byte[] bytes = scanRecord != null ? scanRecord.getBytes() : new byte[0];
+            dispatchScanResult(result.getDevice(), result.getRssi(), bytes, result.getTimestampNanos() / 1000000, result);
+        }
     }
 
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
 
@@ -765,10 +1495,9 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         switch(requestCode) {
             case REQUEST_ACCESS_COARSE_LOCATION:
                 LOG.d(TAG, "User granted Coarse Location Access");
-                findLowEnergyDevices(permissionCallback, serviceUUIDs, scanSeconds);
+                findLowEnergyDevices(pendingScanSession);
                 this.permissionCallback = null;
-                this.serviceUUIDs = null;
-                this.scanSeconds = -1;
+                this.pendingScanSession = null;
                 break;
         }
     }
@@ -777,11 +1506,56 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
         return UUIDHelper.uuidFromString(uuid);
     }
 
-    /**
-     * Reset the BLE scanning options
-     */
-    private void resetScanOptions() {
-        this.reportDuplicates = false;
+    // Binary values (manufacturerData, serviceData and masks) are sent from JavaScript as base64 strings
+    @TargetApi(21)
+    private List<ScanFilter> parseScanFilters(JSONArray jsonArray) throws JSONException {
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+
+        for (int i = 0; i < jsonArray.length(); i++) {
+            JSONObject json = jsonArray.getJSONObject(i);
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+
+            if (json.has("name")) {
+                builder.setDeviceName(json.getString("name"));
+            }
+
+            if (json.has("address")) {
+                builder.setDeviceAddress(json.getString("address").toUpperCase());
+            }
+
+            if (json.has("service")) {
+                builder.setServiceUuid(new ParcelUuid(uuidFromString(json.getString("service"))));
+            }
+
+            if (json.has("serviceData")) {
+                ParcelUuid uuid = new ParcelUuid(uuidFromString(json.getString("serviceDataUuid")));
+                byte[] data = Base64.decode(json.getString("serviceData"), Base64.DEFAULT);
+                if (json.has("serviceDataMask")) {
+                    builder.setServiceData(uuid, data, Base64.decode(json.getString("serviceDataMask"), Base64.DEFAULT));
+                } else {
+                    builder.setServiceData(uuid, data);
+                }
+            } else if (json.has("serviceDataUuid")) {
+                builder.setServiceData(new ParcelUuid(uuidFromString(json.getString("serviceDataUuid"))), new byte[0]);
+            }
+
+            if (json.has("manufacturerId")) {
+                int manufacturerId = json.getInt("manufacturerId");
+                byte[] data = new byte[0];
+                if (json.has("manufacturerData")) {
+                    data = Base64.decode(json.getString("manufacturerData"), Base64.DEFAULT);
+                }
+                if (json.has("manufacturerDataMask")) {
+                    builder.setManufacturerData(manufacturerId, data, Base64.decode(json.getString("manufacturerDataMask"), Base64.DEFAULT));
+                } else {
+                    builder.setManufacturerData(manufacturerId, data);
+                }
+            }
+
+            filters.add(builder.build());
+        }
+
+        return filters;
     }
 
     public static class BLEService extends JobService {
@@ -862,7 +1636,7 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
                         BluetoothDevice device = bluetoothAdapter.getRemoteDevice(thermMacAddress);
                         Peripheral peripheral = new Peripheral(device);
                         peripherals.put(thermMacAddress, peripheral);
-                        device.connectGatt(BLEService.this, true, peripheral);
+                        peripheral.connectInBackground(BLEService.this);
 
                         Log.d(BLECentralPlugin.NATURAL_TAG, "connect gatt called on device");
                         saveLog(new Date().toString() + " NATURAL - connect gatt called on device");
@@ -1,7 +1,12 @@
 package com.megster.cordova.ble.central;
 
+import android.bluetooth.BluetoothGattCharacteristic;
+
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -14,6 +19,12 @@ class BLECommand {
     public static int REGISTER_NOTIFY = 10001;
     public static int REMOVE_NOTIFY = 10002;
     public static int READ_RSSI = 10003;
+    public static int WRITE_STREAM = 10004;
+    public static int REQUEST_MTU = 10005;
+    public static int REQUEST_CONNECTION_PRIORITY = 10006;
+    public static int SET_PREFERRED_PHY = 10007;
+    public static int READ_MANY = 10008;
+    public static int RELIABLE_WRITE = 10009;
     // BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
     // BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
 
@@ -22,6 +33,26 @@ class BLECommand {
     private UUID characteristicUUID;
     private byte[] data;
     private int type;
+    private WriteStream stream;
+    private BatchRead batchRead;
+    private ReliableWrite reliableWrite;
+    private NotificationSubscription subscription;
+    // decodes the value of a read, null to send the bytes
+    private ValueDecoder decoder;
+    // milliseconds a read value is cached, 0 to not cache it
+    private long cacheTtl;
+    // the MTU, connection priority or PHY mask, option is the PHY options
+    private int value;
+    private int option;
+
+    // SystemClock.elapsedRealtime() when the command times out, 0 for no timeout
+    private long deadline;
+    private long timeout;
+    private int priority = BLECommandQueue.NORMAL;
+    // a newer write to the same characteristic replaces this one while it is queued
+    private boolean replace;
+    // the order the command was queued in, set by BLECommandQueue
+    private long sequence;
 
 
     public BLECommand(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int type) {
@@ -39,6 +70,41 @@ class BLECommand {
         this.type = type;
     }
 
+    public BLECommand(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, WriteStream stream) {
+        this.callbackContext = callbackContext;
+        this.serviceUUID = serviceUUID;
+        this.characteristicUUID = characteristicUUID;
+        this.stream = stream;
+        this.type = WRITE_STREAM;
+    }
+
+    public BLECommand(CallbackContext callbackContext, BatchRead batchRead) {
+        this.callbackContext = callbackContext;
+        this.batchRead = batchRead;
+        this.type = READ_MANY;
+    }
+
+    public BLECommand(CallbackContext callbackContext, ReliableWrite reliableWrite) {
+        this.callbackContext = callbackContext;
+        this.reliableWrite = reliableWrite;
+        this.type = RELIABLE_WRITE;
+    }
+
+    public BLECommand(CallbackContext callbackContext, NotificationSubscription subscription) {
+        this.callbackContext = callbackContext;
+        this.serviceUUID = subscription.serviceUUID;
+        this.characteristicUUID = subscription.characteristicUUID;
+        this.subscription = subscription;
+        this.type = REGISTER_NOTIFY;
+    }
+
+    public BLECommand(CallbackContext callbackContext, int value, int option, int type) {
+        this.callbackContext = callbackContext;
+        this.value = value;
+        this.option = option;
+        this.type = type;
+    }
+
     public int getType() {
         return type;
     }
@@ -58,4 +124,159 @@ class BLECommand {
     public byte[] getData() {
         return data;
     }
-}
\ No newline at end of file
+
+    public int getValue() {
+        return value;
+    }
+
+    public int getOption() {
+        return option;
+    }
+
+    public WriteStream getStream() {
+        return stream;
+    }
+
+    public BatchRead getBatchRead() {
+        return batchRead;
+    }
+
+    public ReliableWrite getReliableWrite() {
+        return reliableWrite;
+    }
+
+    public NotificationSubscription getSubscription() {
+        return subscription;
+    }
+
+    public ValueDecoder getDecoder() {
+        return decoder;
+    }
+
+    public void setDecoder(ValueDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    // one of the BLECommandQueue priorities
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public boolean isReplace() {
+        return replace;
+    }
+
+    public void setReplace(boolean replace) {
+        this.replace = replace;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Merges a newer command for the same characteristic into this queued command.
+     * Its callback gets the same result as this command, and a write sends the newer data.
+     */
+    void merge(BLECommand command) {
+        if (!(callbackContext instanceof CallbackGroup)) {
+            callbackContext = new CallbackGroup(callbackContext);
+        }
+        ((CallbackGroup) callbackContext).add(command.getCallbackContext());
+
+        if (isWrite()) {
+            data = command.getData();
+        }
+
+        // cached as long as any caller asked for
+        cacheTtl = Math.max(cacheTtl, command.getCacheTtl());
+
+        // the merged command waits as long as the most patient caller
+        if (deadline == 0 || command.getDeadline() == 0) {
+            deadline = 0;
+            timeout = 0;
+        } else {
+            deadline = Math.max(deadline, command.getDeadline());
+            timeout = Math.max(timeout, command.getTimeout());
+        }
+    }
+
+    // true if both commands use the same characteristic, or both don't use one.
+    // Commands for many characteristics overlap with every command, nothing is merged across them.
+    boolean hasSameTarget(BLECommand command) {
+        if (isMultiTarget() || command.isMultiTarget()) {
+            return true;
+        }
+        return sameUUID(serviceUUID, command.getServiceUUID()) && sameUUID(characteristicUUID, command.getCharacteristicUUID());
+    }
+
+    private boolean isMultiTarget() {
+        return batchRead != null || reliableWrite != null;
+    }
+
+    private static boolean sameUUID(UUID a, UUID b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public boolean isExpired(long now) {
+        return deadline > 0 && now >= deadline;
+    }
+
+    public boolean isWrite() {
+        return type == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT || type == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
+    // Sends every result to the callbacks of all the merged commands
+    private static class CallbackGroup extends CallbackContext {
+
+        private final List<CallbackContext> callbacks = new ArrayList<CallbackContext>();
+
+        CallbackGroup(CallbackContext first) {
+            super(first.getCallbackId(), null);
+            callbacks.add(first);
+        }
+
+        void add(CallbackContext callback) {
+            callbacks.add(callback);
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            for (CallbackContext callback : callbacks) {
+                callback.sendPluginResult(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.apache.cordova.LOG;
+
+import java.util.ArrayDeque;
+
+/**
+ * The commands waiting for a peripheral, in three priority classes. Each class is first in first out.
+ *
+ * A higher class always goes first, except that a class passed over MAX_SKIPS times in a row gets the next turn.
+ * Bulk transfers keep moving while the app sends urgent commands, just more slowly.
+ *
+ * Commands for the same characteristic are never reordered. A command is put in the lowest class of the commands
+ * for its characteristic that are still waiting, so an urgent write can't overtake an older bulk write and leave
+ * the older data on the peripheral.
+ *
+ * A read of a characteristic that is already waiting to be read is merged into the queued read, one GATT read
+ * answers both. A write with the replace option is merged into a queued write of the same characteristic and
+ * only the newest data is sent. Commands are only merged into the newest queued command for the characteristic,
+ * so a read queued after a write never returns the value from before the write.
+ */
+class BLECommandQueue {
+
+    private static final String TAG = "BLECommandQueue";
+
+    static final int URGENT = 0;
+    static final int NORMAL = 1;
+    static final int BULK = 2;
+
+    private static final int MAX_SKIPS = 4;
+
+    private final ArrayDeque<BLECommand> urgent = new ArrayDeque<BLECommand>();
+    private final ArrayDeque<BLECommand> normal = new ArrayDeque<BLECommand>();
+    private final ArrayDeque<BLECommand> bulk = new ArrayDeque<BLECommand>();
+    private final int[] skips = new int[3];
+    private long nextSequence = 0;
+
+    // "urgent", "normal" or "bulk"
+    static int parsePriority(String priority) {
+        if (priority.equals("urgent")) {
+            return URGENT;
+        } else if (priority.equals("normal")) {
+            return NORMAL;
+        } else if (priority.equals("bulk")) {
+            return BULK;
+        }
+        throw new IllegalArgumentException("Unknown priority " + priority);
+    }
+
+    /**
+     * @return false if the command was merged into a queued command instead of being added
+     */
+    synchronized boolean add(BLECommand command) {
+        BLECommand queued = newestFor(command);
+        if (queued != null && canMerge(queued, command)) {
+            LOG.d(TAG, "Merging command into the queued command for " + command.getCharacteristicUUID());
+            queued.merge(command);
+            // promoted, but not past an older command for the characteristic
+            int priority = Math.max(command.getPriority(), lowestPriorityFor(command, queued));
+            if (priority < queued.getPriority()) {
+                queue(queued.getPriority()).remove(queued);
+                queued.setPriority(priority);
+                queue(priority).add(queued);
+            }
+            return false;
+        }
+
+        int lowest = lowestPriorityFor(command, null);
+        if (lowest > command.getPriority()) {
+            LOG.d(TAG, "Queuing command behind an older command for " + command.getCharacteristicUUID());
+            command.setPriority(lowest);
+        }
+
+        command.setSequence(nextSequence++);
+        queue(command.getPriority()).add(command);
+        return true;
+    }
+
+    // the lowest class of the queued commands for the same characteristic, URGENT if there are none
+    private int lowestPriorityFor(BLECommand command, BLECommand except) {
+        for (int priority = BULK; priority > URGENT; priority--) {
+            for (BLECommand queued : queue(priority)) {
+                if (queued != except && queued.hasSameTarget(command)) {
+                    return priority;
+                }
+            }
+        }
+        return URGENT;
+    }
+
+    private static boolean canMerge(BLECommand queued, BLECommand command) {
+        if (queued.getType() != command.getType()) {
+            return false;
+        }
+        // the merged callbacks get the same result
+        if (queued.getDecoder() != null || command.getDecoder() != null) {
+            return false;
+        }
+        int type = command.getType();
+        return type == BLECommand.READ || type == BLECommand.READ_RSSI || (command.isWrite() && command.isReplace());
+    }
+
+    // the last queued command for the same characteristic
+    private BLECommand newestFor(BLECommand command) {
+        BLECommand newest = null;
+        for (int priority = URGENT; priority <= BULK; priority++) {
+            for (BLECommand queued : queue(priority)) {
+                if (queued.hasSameTarget(command) && (newest == null || queued.getSequence() > newest.getSequence())) {
+                    newest = queued;
+                }
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * @return the next command to send, or null if the queue is empty
+     */
+    synchronized BLECommand poll() {
+        int next = -1;
+
+        for (int priority = URGENT; priority <= BULK; priority++) {
+            if (!queue(priority).isEmpty() && skips[priority] >= MAX_SKIPS) {
+                next = priority;
+                break;
+            }
+        }
+
+        if (next < 0) {
+            for (int priority = URGENT; priority <= BULK; priority++) {
+                if (!queue(priority).isEmpty()) {
+                    next = priority;
+                    break;
+                }
+            }
+        }
+
+        if (next < 0) {
+            return null;
+        }
+
+        for (int priority = URGENT; priority <= BULK; priority++) {
+            if (priority == next || queue(priority).isEmpty()) {
+                skips[priority] = 0;
+            } else if (priority > next) {
+                skips[priority]++;
+            }
+        }
+
+        return queue(next).poll();
+    }
+
+    /**
+     * Moves the deadlines of the waiting commands back by the time they waited since a long running command started.
+     * Streams, batch reads and reliable writes time out when they stop making progress, the commands behind them
+     * shouldn't time out because they take long.
+     */
+    synchronized void extendDeadlines(long since, long now) {
+        for (int priority = URGENT; priority <= BULK; priority++) {
+            for (BLECommand queued : queue(priority)) {
+                if (queued.getDeadline() > 0) {
+                    long queuedAt = queued.getDeadline() - queued.getTimeout();
+                    long waited = now - Math.max(since, queuedAt);
+                    if (waited > 0) {
+                        queued.setDeadline(queued.getDeadline() + waited);
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return urgent.isEmpty() && normal.isEmpty() && bulk.isEmpty();
+    }
+
+    synchronized int size() {
+        return urgent.size() + normal.size() + bulk.size();
+    }
+
+    private ArrayDeque<BLECommand> queue(int priority) {
+        if (priority == URGENT) {
+            return urgent;
+        } else if (priority == BULK) {
+            return bulk;
+        }
+        return normal;
+    }
+}
@@ -0,0 +1,93 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The characteristics read by readMany, see Peripheral.queueReadMany.
+ *
+ * The characteristics are read one after the other as a single command. A characteristic that can't be read
+ * gets an error in its result and the rest are still read.
+ */
+class BatchRead {
+
+    private final List<UUID> serviceUUIDs;
+    private final List<UUID> characteristicUUIDs;
+    private final JSONArray results = new JSONArray();
+
+    // the characteristic being read
+    private int index = 0;
+
+    BatchRead(List<UUID> serviceUUIDs, List<UUID> characteristicUUIDs) {
+        this.serviceUUIDs = serviceUUIDs;
+        this.characteristicUUIDs = characteristicUUIDs;
+    }
+
+    boolean isFinished() {
+        return index >= serviceUUIDs.size();
+    }
+
+    UUID getServiceUUID() {
+        return serviceUUIDs.get(index);
+    }
+
+    UUID getCharacteristicUUID() {
+        return characteristicUUIDs.get(index);
+    }
+
+    void onValue(byte[] value) {
+        JSONObject result = result();
+        try {
+            result.put("value", Peripheral.byteArrayToJSON(value != null ? value : new byte[0]));
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        next(result);
+    }
+
+    void onError(String message) {
+        JSONObject result = result();
+        try {
+            result.put("error", message);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        next(result);
+    }
+
+    JSONArray getResults() {
+        return results;
+    }
+
+    private JSONObject result() {
+        JSONObject result = new JSONObject();
+        try {
+            result.put("service", UUIDHelper.uuidToString(getServiceUUID()));
+            result.put("characteristic", UUIDHelper.uuidToString(getCharacteristicUUID()));
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    private void next(JSONObject result) {
+        results.put(result);
+        index++;
+    }
+}
@@ -0,0 +1,23 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+/**
+ * The connection state of a Peripheral. Only the peripheral's thread moves it to CONNECTING or CONNECTED,
+ * disconnect sets DISCONNECTED right away so isConnected is false as soon as the app asked to disconnect.
+ */
+enum ConnectionState {
+    DISCONNECTED,
+    CONNECTING,
+    CONNECTED
+}
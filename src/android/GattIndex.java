@@ -0,0 +1,127 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The services and characteristics of a connected peripheral, indexed once after service discovery.
+ * Peripheral drops the index when the services are refreshed or the peripheral disconnects.
+ *
+ * Some peripherals re-use UUIDs for multiple characteristics, so the characteristic for a command is the first
+ * one with the UUID and the property the command needs. If no characteristic has the property, it is the first
+ * characteristic with the UUID. For notifications, notify is preferred over indicate.
+ * Like BluetoothGatt.getService, the first service with a UUID is used.
+ */
+class GattIndex {
+
+    private static class Characteristics {
+        BluetoothGattCharacteristic read;
+        BluetoothGattCharacteristic write;
+        BluetoothGattCharacteristic writeWithoutResponse;
+        BluetoothGattCharacteristic notify;
+        BluetoothGattCharacteristic indicate;
+        BluetoothGattCharacteristic any;
+    }
+
+    private static class Service {
+        final BluetoothGattService service;
+        final Map<UUID, Characteristics> characteristics = new HashMap<UUID, Characteristics>();
+
+        Service(BluetoothGattService service) {
+            this.service = service;
+        }
+    }
+
+    private final Map<UUID, Service> services = new HashMap<UUID, Service>();
+
+    GattIndex(List<BluetoothGattService> gattServices) {
+        for (BluetoothGattService gattService : gattServices) {
+            if (services.containsKey(gattService.getUuid())) {
+                continue;
+            }
+            Service service = new Service(gattService);
+            services.put(gattService.getUuid(), service);
+
+            for (BluetoothGattCharacteristic characteristic : gattService.getCharacteristics()) {
+                Characteristics entry = service.characteristics.get(characteristic.getUuid());
+                if (entry == null) {
+                    entry = new Characteristics();
+                    entry.any = characteristic;
+                    service.characteristics.put(characteristic.getUuid(), entry);
+                }
+
+                int properties = characteristic.getProperties();
+                if (entry.read == null && (properties & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+                    entry.read = characteristic;
+                }
+                if (entry.write == null && (properties & BluetoothGattCharacteristic.PROPERTY_WRITE) != 0) {
+                    entry.write = characteristic;
+                }
+                if (entry.writeWithoutResponse == null && (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                    entry.writeWithoutResponse = characteristic;
+                }
+                if (entry.notify == null && (properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+                    entry.notify = characteristic;
+                }
+                if (entry.indicate == null && (properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+                    entry.indicate = characteristic;
+                }
+            }
+        }
+    }
+
+    boolean hasService(UUID serviceUUID) {
+        return services.containsKey(serviceUUID);
+    }
+
+    BluetoothGattCharacteristic findReadable(UUID serviceUUID, UUID characteristicUUID) {
+        Characteristics entry = find(serviceUUID, characteristicUUID);
+        if (entry == null) {
+            return null;
+        }
+        return entry.read != null ? entry.read : entry.any;
+    }
+
+    // writeType is BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT or WRITE_TYPE_NO_RESPONSE
+    BluetoothGattCharacteristic findWritable(UUID serviceUUID, UUID characteristicUUID, int writeType) {
+        Characteristics entry = find(serviceUUID, characteristicUUID);
+        if (entry == null) {
+            return null;
+        }
+        BluetoothGattCharacteristic characteristic = writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? entry.writeWithoutResponse : entry.write;
+        return characteristic != null ? characteristic : entry.any;
+    }
+
+    BluetoothGattCharacteristic findNotify(UUID serviceUUID, UUID characteristicUUID) {
+        Characteristics entry = find(serviceUUID, characteristicUUID);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.notify != null) {
+            return entry.notify;
+        }
+        return entry.indicate != null ? entry.indicate : entry.any;
+    }
+
+    private Characteristics find(UUID serviceUUID, UUID characteristicUUID) {
+        Service service = services.get(serviceUUID);
+        return service != null ? service.characteristics.get(characteristicUUID) : null;
+    }
+}
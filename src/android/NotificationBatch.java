@@ -0,0 +1,163 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Packs the notifications of one subscription into batches that are sent to JavaScript as an ArrayBuffer,
+ * see the batchInterval and batchSize options of startNotification.
+ * The decoder is decodeNotificationBatch in www/ble.js, keep them in sync.
+ *
+ * All values are little endian.
+ *
+ *   batch header (12 bytes)
+ *     uint8   version
+ *     uint8   reserved, 0
+ *     uint16  number of packets
+ *     float64 time the first packet was received, milliseconds since the epoch
+ *
+ *   packet
+ *     uint32  milliseconds since the first packet
+ *     uint16  value length
+ *     uint8[] value
+ */
+class NotificationBatch {
+
+    static final int VERSION = 1;
+
+    static final int DEFAULT_INTERVAL = 100;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_PACKETS = 0xFFFF;
+
+    // batches are flushed early once they reach this size
+    static final int MAX_BATCH_SIZE = 32 * 1024;
+
+    // milliseconds from the first packet until the batch is sent
+    private final int interval;
+    // packets in a full batch, 0 for no limit
+    private final int size;
+
+    private byte[] buffer = new byte[1024];
+    private int position = HEADER_SIZE;
+    private int count = 0;
+    private int lastFlushCount = 0;
+    private long firstElapsed;
+    private double firstTime;
+
+    NotificationBatch(int interval, int size) {
+        this.interval = interval;
+        this.size = size;
+    }
+
+    /**
+     * @return null if the options don't ask for batches
+     * @throws IllegalArgumentException if batchInterval or batchSize are invalid
+     */
+    static NotificationBatch fromOptions(JSONObject options) {
+        if (options == null || !(options.has("batchInterval") || options.has("batchSize"))) {
+            return null;
+        }
+        int interval = options.optInt("batchInterval", DEFAULT_INTERVAL);
+        int size = options.optInt("batchSize", 0);
+        if (interval <= 0 || size < 0) {
+            throw new IllegalArgumentException("Invalid batch options, batchInterval must be positive and batchSize can't be negative");
+        }
+        return new NotificationBatch(interval, size);
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Adds a notification to the current batch
+     * @param elapsedMillis SystemClock.elapsedRealtime() when the notification was received
+     * @return true when the batch is full and should be flushed
+     */
+    synchronized boolean add(byte[] value, long elapsedMillis) {
+        if (count == 0) {
+            firstElapsed = elapsedMillis;
+            firstTime = System.currentTimeMillis();
+        }
+
+        int length = value != null ? Math.min(value.length, 0xFFFF) : 0;
+        ensureCapacity(6 + length);
+
+        putUint32(Math.max(0, elapsedMillis - firstElapsed));
+        putUint16(length);
+        if (length > 0) {
+            System.arraycopy(value, 0, buffer, position, length);
+            position += length;
+        }
+
+        count++;
+        return (size > 0 && count >= size) || count >= MAX_PACKETS || position >= MAX_BATCH_SIZE;
+    }
+
+    // the number of packets in the batch returned by the last flush
+    synchronized int getLastFlushCount() {
+        return lastFlushCount;
+    }
+
+    synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return the current batch, or null if there are no packets
+     */
+    synchronized byte[] flush() {
+        if (count == 0) {
+            return null;
+        }
+
+        int end = position;
+        position = 0;
+        buffer[position++] = (byte) VERSION;
+        buffer[position++] = 0;
+        putUint16(count);
+        long time = Double.doubleToLongBits(firstTime);
+        for (int shift = 0; shift < 64; shift += 8) {
+            buffer[position++] = (byte) (time >>> shift);
+        }
+
+        byte[] batch = Arrays.copyOf(buffer, end);
+
+        position = HEADER_SIZE;
+        lastFlushCount = count;
+        count = 0;
+        return batch;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (position + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + additional));
+        }
+    }
+
+    private void putUint16(int value) {
+        buffer[position++] = (byte) value;
+        buffer[position++] = (byte) (value >>> 8);
+    }
+
+    private void putUint32(long value) {
+        buffer[position++] = (byte) value;
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 24);
+    }
+}
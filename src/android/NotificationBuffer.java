@@ -0,0 +1,127 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONObject;
+
+/**
+ * The messages of one subscription that wait while JavaScript is behind, see the bufferSize and overflow options
+ * of startNotification. A message is a notification value or a NotificationBatch.
+ *
+ * JavaScript acknowledges each message after its success callback returned. At most MAX_PENDING messages are
+ * unacknowledged, later messages wait here. The buffer has a fixed size, a message that doesn't fit is dropped
+ * according to the overflow policy.
+ *
+ * Not thread safe, NotificationSubscription only uses it while holding its lock.
+ */
+class NotificationBuffer {
+
+    static final int DROP_OLDEST = 0;
+    static final int DROP_NEWEST = 1;
+    static final int LATEST = 2;
+
+    static final int DEFAULT_SIZE = 64;
+
+    // messages sent to JavaScript before waiting for an acknowledgement
+    static final int MAX_PENDING = 4;
+
+    private final int overflow;
+    private final byte[][] messages;
+    // notifications in each message
+    private final int[] packets;
+    private int head = 0;
+    private int count = 0;
+    private int bufferedPackets = 0;
+
+    NotificationBuffer(int size, int overflow) {
+        this.overflow = overflow;
+        if (overflow == LATEST) {
+            size = 1;
+        }
+        messages = new byte[size][];
+        packets = new int[size];
+    }
+
+    /**
+     * @return null if the options don't ask for a buffer
+     * @throws IllegalArgumentException if bufferSize or overflow are invalid
+     */
+    static NotificationBuffer fromOptions(JSONObject options) {
+        if (options == null || !(options.has("bufferSize") || options.has("overflow"))) {
+            return null;
+        }
+        int size = options.optInt("bufferSize", DEFAULT_SIZE);
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid bufferSize " + size + ", it must be positive");
+        }
+        return new NotificationBuffer(size, parseOverflow(options.optString("overflow", "dropOldest")));
+    }
+
+    // "dropOldest", "dropNewest" or "latest"
+    static int parseOverflow(String overflow) {
+        if (overflow.equals("dropOldest")) {
+            return DROP_OLDEST;
+        } else if (overflow.equals("dropNewest")) {
+            return DROP_NEWEST;
+        } else if (overflow.equals("latest")) {
+            return LATEST;
+        }
+        throw new IllegalArgumentException("Unknown overflow " + overflow);
+    }
+
+    /**
+     * @param count the notifications in the message
+     * @return the number of notifications dropped to make room, or the message's own count if it was dropped
+     */
+    int add(byte[] message, int count) {
+        int dropped = 0;
+        if (this.count == messages.length) {
+            if (overflow == DROP_NEWEST) {
+                return count;
+            }
+            dropped = packets[head];
+            remove();
+        }
+
+        int tail = (head + this.count) % messages.length;
+        messages[tail] = message;
+        packets[tail] = count;
+        this.count++;
+        bufferedPackets += count;
+        return dropped;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    // the oldest message
+    byte[] peekMessage() {
+        return messages[head];
+    }
+
+    int peekPackets() {
+        return packets[head];
+    }
+
+    void remove() {
+        bufferedPackets -= packets[head];
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        count--;
+    }
+
+    int getBufferedPackets() {
+        return bufferedPackets;
+    }
+}
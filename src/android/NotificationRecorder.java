@@ -0,0 +1,543 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.apache.cordova.LOG;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Records the notifications of some characteristics to files, see startRecording.
+ * The records are read back in pages by readRecording, decodeRecordingPage in www/ble.js decodes them,
+ * keep them in sync.
+ *
+ * A recording is a directory with recording.json, which lists the characteristics, and numbered segment files.
+ * Each segment is memory mapped, so a notification is recorded without a system call. When a segment is full
+ * the next one is started, and the oldest segment is deleted once there are more than maxSegments.
+ *
+ * Notifications are recorded on the binder thread, so the disk work happens on the peripheral's thread: the next
+ * segment is mapped ahead of time, and a full segment is forced to disk and closed after the switch. A spare
+ * segment has 0 bytes used until it is started. If the spare isn't mapped yet when a segment fills up, the
+ * notification is dropped and counted.
+ *
+ * All values are little endian.
+ *
+ *   segment header (24 bytes)
+ *     uint32  magic, "BLER"
+ *     uint16  version
+ *     uint16  reserved, 0
+ *     uint32  segment number
+ *     uint32  bytes used, including the header, 0 for the spare segment. The rest of the segment is zeros.
+ *     float64 time the recording started, milliseconds since the epoch
+ *
+ *   record
+ *     int64   nanoseconds since the recording started, SystemClock.elapsedRealtimeNanos()
+ *     uint16  characteristic handle, the index of the characteristic in recording.json
+ *     uint16  value length
+ *     uint8[] value
+ */
+class NotificationRecorder {
+
+    private static final String TAG = "NotificationRecorder";
+
+    static final int VERSION = 1;
+    static final int MAGIC = 0x52454C42;
+
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = 12;
+    private static final int USED_OFFSET = 12;
+
+    static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    // a page always has room for one record
+    static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+    static final int MIN_PAGE_SIZE = RECORD_HEADER_SIZE + 0xFFFF;
+
+    static final String INDEX_FILE = "recording.json";
+
+    private final File directory;
+    private final String id;
+    private final UUID[] serviceUUIDs;
+    private final UUID[] characteristicUUIDs;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final long startNanos;
+    private final double startTime;
+
+    private final Handler handler;
+
+    // the segment being written, buffer is null once the recording stopped
+    private int segment = 0;
+    private int firstSegment = 0;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+
+    // the next segment, mapped by the peripheral's thread
+    private RandomAccessFile spareFile;
+    private MappedByteBuffer spareBuffer;
+    private boolean preparing = false;
+
+    // the full segment, closed by the peripheral's thread
+    private RandomAccessFile fullFile;
+    private MappedByteBuffer fullBuffer;
+
+    private long records = 0;
+    // notifications that arrived while there was no spare segment
+    private long dropped = 0;
+
+    private final Runnable rotateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            rotate();
+        }
+    };
+
+    NotificationRecorder(File directory, String id, List<UUID> serviceUUIDs, List<UUID> characteristicUUIDs,
+                         int segmentSize, int maxSegments, Handler handler) throws IOException, JSONException {
+        this.directory = directory;
+        this.handler = handler;
+        this.id = id;
+        this.serviceUUIDs = serviceUUIDs.toArray(new UUID[serviceUUIDs.size()]);
+        this.characteristicUUIDs = characteristicUUIDs.toArray(new UUID[characteristicUUIDs.size()]);
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.startNanos = SystemClock.elapsedRealtimeNanos();
+        this.startTime = System.currentTimeMillis();
+
+        if (directory.exists()) {
+            throw new IOException("Recording " + id + " already exists");
+        }
+        if (!directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        writeIndex(false);
+
+        file = openSegment(segment);
+        buffer = mapSegment(file, segment);
+        buffer.putInt(USED_OFFSET, HEADER_SIZE);
+        preparing = true;
+        handler.post(rotateRunnable);
+    }
+
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Records the value if the characteristic is recorded. Called for every notification, doesn't allocate.
+     */
+    synchronized void record(BluetoothGattCharacteristic characteristic) {
+        if (buffer == null) {
+            return;
+        }
+
+        int handle = handleOf(characteristic);
+        if (handle < 0) {
+            return;
+        }
+
+        long nanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        byte[] value = characteristic.getValue();
+        int length = value != null ? Math.min(value.length, 0xFFFF) : 0;
+
+        if (buffer.remaining() < RECORD_HEADER_SIZE + length) {
+            if (spareBuffer == null) {
+                dropped++;
+                if (!preparing) {
+                    // mapping the last spare failed, try again
+                    preparing = true;
+                    handler.post(rotateRunnable);
+                }
+                return;
+            }
+            // switch to the spare, the peripheral's thread closes the full segment and maps the next spare
+            fullFile = file;
+            fullBuffer = buffer;
+            file = spareFile;
+            buffer = spareBuffer;
+            spareFile = null;
+            spareBuffer = null;
+            segment++;
+            buffer.putInt(USED_OFFSET, HEADER_SIZE);
+            preparing = true;
+            handler.post(rotateRunnable);
+        }
+
+        buffer.putLong(nanos);
+        buffer.putShort((short) handle);
+        buffer.putShort((short) length);
+        if (length > 0) {
+            buffer.put(value, 0, length);
+        }
+        buffer.putInt(USED_OFFSET, buffer.position());
+        records++;
+    }
+
+    /**
+     * Stops the recording
+     * @return the recording summary
+     */
+    synchronized JSONObject stop() throws JSONException {
+        if (buffer != null) {
+            close(file, buffer, segment);
+            buffer = null;
+            file = null;
+        }
+        if (fullBuffer != null) {
+            close(fullFile, fullBuffer, segment - 1);
+            fullBuffer = null;
+            fullFile = null;
+        }
+        discardSpare();
+        try {
+            writeIndex(true);
+        } catch (IOException e) {
+            LOG.e(TAG, "Can't write the index of recording " + id, e);
+        }
+        return summary(true);
+    }
+
+    synchronized JSONObject summary(boolean stopped) throws JSONException {
+        JSONObject summary = new JSONObject();
+        summary.put("id", id);
+        summary.put("startTime", startTime);
+        summary.put("records", records);
+        summary.put("dropped", dropped);
+        summary.put("firstSegment", firstSegment);
+        summary.put("lastSegment", segment);
+        summary.put("stopped", stopped);
+        return summary;
+    }
+
+    // some peripherals re-use UUIDs, their notifications share a handle
+    private int handleOf(BluetoothGattCharacteristic characteristic) {
+        UUID characteristicUUID = characteristic.getUuid();
+        for (int i = 0; i < characteristicUUIDs.length; i++) {
+            if (characteristicUUIDs[i].equals(characteristicUUID)
+                    && serviceUUIDs[i].equals(characteristic.getService().getUuid())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Runs on the peripheral's thread: closes the full segment, deletes the oldest and maps the next spare
+    private void rotate() {
+        RandomAccessFile closeFile;
+        MappedByteBuffer closeBuffer;
+        int closeSegment;
+        int spare;
+        int deleteFrom;
+        int deleteTo;
+        synchronized (this) {
+            if (buffer == null) {
+                preparing = false;
+                return;
+            }
+            closeFile = fullFile;
+            closeBuffer = fullBuffer;
+            closeSegment = segment - 1;
+            spare = segment + 1;
+            deleteFrom = firstSegment;
+            while (segment - firstSegment >= maxSegments) {
+                firstSegment++;
+            }
+            deleteTo = firstSegment;
+        }
+
+        if (closeBuffer != null) {
+            close(closeFile, closeBuffer, closeSegment);
+        }
+        for (int i = deleteFrom; i < deleteTo; i++) {
+            if (!segmentFile(directory, i).delete()) {
+                LOG.w(TAG, "Can't delete segment " + i + " of recording " + id);
+            }
+        }
+
+        RandomAccessFile nextFile = null;
+        MappedByteBuffer nextBuffer = null;
+        try {
+            nextFile = openSegment(spare);
+            nextBuffer = mapSegment(nextFile, spare);
+        } catch (IOException e) {
+            LOG.e(TAG, "Can't map segment " + spare + " of recording " + id, e);
+        }
+
+        synchronized (this) {
+            if (closeBuffer != null && fullBuffer == closeBuffer) {
+                fullBuffer = null;
+                fullFile = null;
+            }
+            preparing = false;
+            if (buffer == null) {
+                // stopped while the spare was mapped
+                if (nextBuffer != null) {
+                    close(nextFile, nextBuffer, spare);
+                    segmentFile(directory, spare).delete();
+                }
+                return;
+            }
+            spareFile = nextFile;
+            spareBuffer = nextBuffer;
+        }
+    }
+
+    private RandomAccessFile openSegment(int number) throws IOException {
+        return new RandomAccessFile(segmentFile(directory, number), "rw");
+    }
+
+    // maps a segment and writes its header, with 0 bytes used until it is started
+    private MappedByteBuffer mapSegment(RandomAccessFile file, int number) throws IOException {
+        MappedByteBuffer buffer;
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(number);
+        buffer.putInt(0);
+        buffer.putDouble(startTime);
+        return buffer;
+    }
+
+    private void close(RandomAccessFile file, MappedByteBuffer buffer, int number) {
+        buffer.force();
+        try {
+            file.close();
+        } catch (IOException e) {
+            LOG.w(TAG, "Can't close segment " + number + " of recording " + id, e);
+        }
+    }
+
+    private void discardSpare() {
+        if (spareBuffer == null) {
+            return;
+        }
+        try {
+            spareFile.close();
+        } catch (IOException e) {
+            LOG.w(TAG, "Can't close segment " + (segment + 1) + " of recording " + id, e);
+        }
+        spareFile = null;
+        spareBuffer = null;
+        segmentFile(directory, segment + 1).delete();
+    }
+
+    private void writeIndex(boolean stopped) throws IOException, JSONException {
+        JSONObject index = summary(stopped);
+        index.put("version", VERSION);
+        index.put("segmentSize", segmentSize);
+        index.put("maxSegments", maxSegments);
+
+        JSONArray characteristics = new JSONArray();
+        for (int i = 0; i < characteristicUUIDs.length; i++) {
+            JSONObject characteristic = new JSONObject();
+            characteristic.put("service", UUIDHelper.uuidToString(serviceUUIDs[i]));
+            characteristic.put("characteristic", UUIDHelper.uuidToString(characteristicUUIDs[i]));
+            characteristics.put(characteristic);
+        }
+        index.put("characteristics", characteristics);
+
+        FileOutputStream out = new FileOutputStream(new File(directory, INDEX_FILE));
+        try {
+            out.write(index.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    static File segmentFile(File directory, int segment) {
+        return new File(directory, String.format("segment-%06d.bin", segment));
+    }
+
+    static JSONObject readIndex(File directory) throws IOException, JSONException {
+        File file = new File(directory, INDEX_FILE);
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return new JSONObject(new String(bytes, "UTF-8"));
+    }
+
+    /**
+     * Reads the records after a position in a recording. Only whole records are returned.
+     *
+     * @param maxBytes the size of the page, at least MIN_PAGE_SIZE
+     * @return the page, next is the position after it or null when the recording stopped and everything was read
+     */
+    static JSONObject readPage(File directory, int segment, int offset, int maxBytes) throws IOException, JSONException {
+        JSONObject index = readIndex(directory);
+        boolean stopped = index.optBoolean("stopped");
+
+        // the oldest segments are deleted while recording
+        int lastSegment = lastSegment(directory);
+        while (segment < lastSegment && !segmentFile(directory, segment).exists()) {
+            segment++;
+            offset = HEADER_SIZE;
+        }
+        offset = Math.max(offset, HEADER_SIZE);
+
+        // check before reading the header, the segment doesn't change once the next one is started
+        boolean finished = stopped || isStarted(segmentFile(directory, segment + 1));
+
+        byte[] data = new byte[0];
+        int used = HEADER_SIZE;
+        File file = segmentFile(directory, segment);
+        if (file.exists()) {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                byte[] header = new byte[HEADER_SIZE];
+                in.readFully(header);
+                ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                if (headerBuffer.getInt(0) != MAGIC) {
+                    throw new IOException("Segment " + segment + " of " + directory.getName() + " is not a recording");
+                }
+                used = headerBuffer.getInt(USED_OFFSET);
+
+                if (offset < used) {
+                    data = new byte[Math.min(used - offset, Math.max(maxBytes, MIN_PAGE_SIZE))];
+                    in.seek(offset);
+                    in.readFully(data);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        // drop the partial record at the end of the page
+        ByteBuffer records = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int length = 0;
+        int count = 0;
+        while (length + RECORD_HEADER_SIZE <= data.length) {
+            int next = length + RECORD_HEADER_SIZE + (records.getShort(length + 10) & 0xFFFF);
+            if (next > data.length) {
+                break;
+            }
+            length = next;
+            count++;
+        }
+        if (length < data.length) {
+            data = Arrays.copyOf(data, length);
+        }
+
+        JSONObject page = new JSONObject();
+        page.put("id", directory.getName());
+        page.put("startTime", index.getDouble("startTime"));
+        page.put("characteristics", index.getJSONArray("characteristics"));
+        page.put("segment", segment);
+        page.put("offset", offset);
+        page.put("records", count);
+        page.put("data", Peripheral.byteArrayToJSON(data));
+
+        int nextOffset = offset + length;
+        if (nextOffset < used || !finished) {
+            page.put("next", cursor(segment, nextOffset));
+        } else if (segment < lastSegment) {
+            page.put("next", cursor(segment + 1, HEADER_SIZE));
+        } else {
+            page.put("next", JSONObject.NULL);
+        }
+        return page;
+    }
+
+    // false for the spare segment, which is mapped before it is used
+    private static boolean isStarted(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() < HEADER_SIZE) {
+                return false;
+            }
+            byte[] header = new byte[HEADER_SIZE];
+            in.readFully(header);
+            return ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(USED_OFFSET) >= HEADER_SIZE;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static JSONObject cursor(int segment, int offset) throws JSONException {
+        JSONObject cursor = new JSONObject();
+        cursor.put("segment", segment);
+        cursor.put("offset", offset);
+        return cursor;
+    }
+
+    private static int lastSegment(File directory) {
+        int last = -1;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("segment-") && name.endsWith(".bin")) {
+                    try {
+                        last = Math.max(last, Integer.parseInt(name.substring(8, name.length() - 4)));
+                    } catch (NumberFormatException e) {
+                        LOG.w(TAG, "Ignoring " + name);
+                    }
+                }
+            }
+        }
+        return last;
+    }
+
+    // deletes the recording's files
+    static boolean delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    return false;
+                }
+            }
+        }
+        return directory.delete();
+    }
+}
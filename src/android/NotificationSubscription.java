@@ -0,0 +1,204 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.UUID;
+
+/**
+ * A startNotification callback for one characteristic. Peripheral keys subscriptions by the characteristic's
+ * instance id, so routing a notification doesn't allocate anything.
+ *
+ * With a NotificationBatch, notifications are collected and sent together when the batch is full or its interval
+ * has passed since the first notification in it. With a NotificationBuffer, messages wait while JavaScript is behind
+ * and the buffer's overflow policy decides what is dropped. With a ValueDecoder, the decoded numbers are sent instead
+ * of the value.
+ */
+class NotificationSubscription {
+
+    final UUID serviceUUID;
+    final UUID characteristicUUID;
+    final CallbackContext callback;
+    // set by bind when the characteristic is found
+    int instanceId;
+
+    private final NotificationBatch batch;
+    private final NotificationBuffer buffer;
+    private final ValueDecoder decoder;
+    private final Handler handler;
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // false if the notifications are only recorded
+    private final boolean forward;
+
+    // messages sent that JavaScript didn't acknowledge yet, only counted with a buffer
+    private int pending = 0;
+
+    // notifications received from the peripheral, sent to JavaScript and dropped by the buffer
+    private long received = 0;
+    private long delivered = 0;
+    private long dropped = 0;
+
+    /**
+     * @param batch null to send each notification on its own
+     * @param buffer null to send messages without waiting for JavaScript
+     * @param decoder null to send the values as they are
+     * @param handler runs the batch interval
+     */
+    NotificationSubscription(UUID serviceUUID, UUID characteristicUUID, CallbackContext callback, NotificationBatch batch,
+                             NotificationBuffer buffer, ValueDecoder decoder, Handler handler) {
+        this.serviceUUID = serviceUUID;
+        this.characteristicUUID = characteristicUUID;
+        this.callback = callback;
+        this.batch = batch;
+        this.buffer = buffer;
+        this.decoder = decoder;
+        this.handler = handler;
+        this.forward = true;
+    }
+
+    /**
+     * Enables notifications for a NotificationRecorder, the notifications are not sent to the callback
+     */
+    NotificationSubscription(UUID serviceUUID, UUID characteristicUUID, CallbackContext callback) {
+        this.serviceUUID = serviceUUID;
+        this.characteristicUUID = characteristicUUID;
+        this.callback = callback;
+        this.batch = null;
+        this.buffer = null;
+        this.decoder = null;
+        this.handler = null;
+        this.forward = false;
+    }
+
+    boolean isForwarding() {
+        return forward;
+    }
+
+    void bind(BluetoothGattCharacteristic characteristic) {
+        instanceId = characteristic.getInstanceId();
+    }
+
+    // Before Android 5.0 instance ids are only unique per UUID, so the ids of two characteristics can collide
+    boolean matches(BluetoothGattCharacteristic characteristic) {
+        return instanceId == characteristic.getInstanceId() && characteristicUUID.equals(characteristic.getUuid())
+                && serviceUUID.equals(characteristic.getService().getUuid());
+    }
+
+    boolean isFor(UUID serviceUUID, UUID characteristicUUID, int instanceId) {
+        return this.instanceId == instanceId && this.characteristicUUID.equals(characteristicUUID)
+                && this.serviceUUID.equals(serviceUUID);
+    }
+
+    synchronized void onNotification(byte[] value) {
+        received++;
+
+        if (decoder != null) {
+            value = decoder.decode(value);
+        }
+
+        if (batch == null) {
+            deliver(value, 1);
+            return;
+        }
+
+        boolean first = batch.isEmpty();
+        if (batch.add(value, SystemClock.elapsedRealtime())) {
+            handler.removeCallbacks(flushRunnable);
+            deliver(batch.flush(), batch.getLastFlushCount());
+        } else if (first) {
+            handler.postDelayed(flushRunnable, batch.getInterval());
+        }
+    }
+
+    // JavaScript handled a message, send the next one from the buffer
+    synchronized void onAck() {
+        if (buffer == null) {
+            return;
+        }
+        if (pending > 0) {
+            pending--;
+        }
+        while (pending < NotificationBuffer.MAX_PENDING && !buffer.isEmpty()) {
+            pending++;
+            send(buffer.peekMessage(), buffer.peekPackets());
+            buffer.remove();
+        }
+    }
+
+    // sends the notifications that are still waiting in the batch and the buffer
+    synchronized void close() {
+        if (batch != null) {
+            handler.removeCallbacks(flushRunnable);
+            flush();
+        }
+        if (buffer != null) {
+            while (!buffer.isEmpty()) {
+                send(buffer.peekMessage(), buffer.peekPackets());
+                buffer.remove();
+            }
+        }
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("received", received);
+        stats.put("delivered", delivered);
+        stats.put("dropped", dropped);
+        stats.put("buffered", buffer != null ? buffer.getBufferedPackets() : 0);
+        stats.put("pending", pending);
+        return stats;
+    }
+
+    private synchronized void flush() {
+        byte[] data = batch.flush();
+        if (data != null) {
+            deliver(data, batch.getLastFlushCount());
+        }
+    }
+
+    // sends the message, or buffers it while too many messages are unacknowledged
+    private void deliver(byte[] message, int packets) {
+        if (buffer == null) {
+            send(message, packets);
+        } else if (pending < NotificationBuffer.MAX_PENDING && buffer.isEmpty()) {
+            pending++;
+            send(message, packets);
+        } else {
+            dropped += buffer.add(message, packets);
+        }
+    }
+
+    private void send(byte[] message, int packets) {
+        if (!forward) {
+            return;
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+        result.setKeepCallback(true);
+        callback.sendPluginResult(result);
+        delivered += packets;
+    }
+}
@@ -17,9 +17,13 @@ package com.megster.cordova.ble.central;
 import android.app.Activity;
 
 import android.bluetooth.*;
+import android.content.Context;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Base64;
+import android.util.SparseArray;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.LOG;
 import org.apache.cordova.PluginResult;
@@ -27,15 +31,16 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import java.lang.reflect.Method;
 
 /**
  * Peripheral wraps the BluetoothDevice and provides methods to convert to JSON.
  */
-public class Peripheral extends BluetoothGattCallback {
+public class Peripheral {
 
     // 0x2902 org.bluetooth.descriptor.gatt.client_characteristic_configuration.xml
     //public final static UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
@@ -45,23 +50,114 @@ public class Peripheral extends BluetoothGattCallback {
     private static final int FAKE_PERIPHERAL_RSSI = 0x7FFFFFFF;
 
     private BluetoothDevice device;
-    private byte[] advertisingData;
-    private int advertisingRSSI;
+    private volatile byte[] advertisingData;
+    private volatile int advertisingRSSI;
+    private volatile long lastSeen;
+
+    // parsed advertisingData, only parsed again when the bytes change
+    private AdvertisingData parsedAdvertising;
     private boolean autoconnect = false;
-    private boolean connected = false;
-    private boolean connecting = false;
-    private ConcurrentLinkedQueue<BLECommand> commandQueue = new ConcurrentLinkedQueue<BLECommand>();
+    private volatile ConnectionState state = ConnectionState.DISCONNECTED;
+    private BLECommandQueue commandQueue = new BLECommandQueue();
     private boolean bleProcessing;
 
-    BluetoothGatt gatt;
+    // The state machine runs on the peripheral's own thread: the GATT callbacks, the commands and their timeouts.
+    // Created on first use, so scanned peripherals that are never connected don't start a thread.
+    private HandlerThread thread;
+    private Handler handler;
+    private final BluetoothGattCallback gattCallback = new SerialGattCallback(this);
+    private Runnable processCommandsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            processCommands();
+        }
+    };
+
+    // The GATT callback for a command sometimes never arrives, the watchdog fails the command at its deadline
+    // so the rest of the queue isn't stuck until the peripheral disconnects
+    static final long DEFAULT_COMMAND_TIMEOUT = 30000;
+    private long commandTimeout = DEFAULT_COMMAND_TIMEOUT;
+    private boolean resetOnTimeout = false;
+    private BLECommand currentCommand;
+    private Runnable watchdogRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onCommandTimeout();
+        }
+    };
+
+    // the characteristic a write stream is writing, see queueWriteStream
+    private BluetoothGattCharacteristic streamCharacteristic;
+    private Runnable streamRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pumpStream();
+        }
+    };
+    // milliseconds to wait before writing again when the stack refused a write, doubled for each refusal in a row
+    private static final long STREAM_RETRY_DELAY = 5;
+    private static final long STREAM_MAX_RETRY_DELAY = 320;
+    // refusals in a row before the stream fails, about 5 seconds
+    private static final int STREAM_MAX_RETRIES = 20;
+
+    // elapsedRealtime when the running stream, batch read or reliable write started, 0 if none is running.
+    // Their timeout restarts with every packet, the deadlines of the commands waiting behind them are extended.
+    private long progressTimedSince;
+
+    // connection parameters, the defaults until requestMtu, requestConnectionPriority and setPreferredPhy change them
+    private static final int DEFAULT_MTU = 23;
+    private volatile int mtu = DEFAULT_MTU;
+    private int connectionPriority = -1;
+    private int txPhy = 0;
+    private int rxPhy = 0;
+    // from onConnectionUpdated, interval in 1.25 ms units and supervision timeout in 10 ms units
+    private int connectionInterval = 0;
+    private int connectionLatency = 0;
+    private int supervisionTimeout = 0;
+
+    // connect options applied before the connect callback succeeds, 0, -1 and null for none
+    private int connectMtu = 0;
+    private int connectPriority = -1;
+    private String connectPhy = null;
+
+    // Stacks don't call back when the connection parameters or PHY don't change,
+    // the command succeeds with the current values after this many milliseconds
+    private static final long CONNECTION_UPDATE_TIMEOUT = 2000;
+    private Runnable connectionUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onConnectionUpdateTimeout();
+        }
+    };
+    private Runnable phyReadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isCurrentCommand(BLECommand.SET_PREFERRED_PHY) && gatt != null) {
+                gatt.readPhy();
+            }
+        }
+    };
+
+    volatile BluetoothGatt gatt;
+    // the services of the connected peripheral, built after service discovery
+    private volatile GattIndex gattIndex;
+    private final ValueCache valueCache = new ValueCache();
 
     private CallbackContext connectCallback;
     private CallbackContext refreshCallback;
     private CallbackContext readCallback;
     private CallbackContext writeCallback;
-    private Activity currentActivity;
+    private Context context;
+
+    // Notification routing, indexed by characteristic instance id. Both are replaced rather than modified, so
+    // onCharacteristicChanged reads them without locking or allocating.
+    private volatile NotificationSubscription[] subscriptions = new NotificationSubscription[0];
+    private volatile SparseArray<NotificationSubscription> subscriptionsById = new SparseArray<NotificationSubscription>();
 
-    private Map<String, CallbackContext> notificationCallbacks = new HashMap<String, CallbackContext>();
+    // records notifications to files, see startRecording
+    private volatile NotificationRecorder recorder;
+    // the subscriptions startRecording added, the notifications were not started by JavaScript
+    private List<NotificationSubscription> recordingSubscriptions = new ArrayList<NotificationSubscription>();
 
     public Peripheral(BluetoothDevice device) {
 
@@ -70,6 +166,7 @@ public class Peripheral extends BluetoothGattCallback {
         this.device = device;
         this.advertisingRSSI = FAKE_PERIPHERAL_RSSI;
         this.advertisingData = null;
+        this.lastSeen = SystemClock.elapsedRealtime();
 
     }
 
@@ -78,6 +175,7 @@ public class Peripheral extends BluetoothGattCallback {
         this.device = device;
         this.advertisingRSSI = advertisingRSSI;
         this.advertisingData = scanRecord;
+        this.lastSeen = SystemClock.elapsedRealtime();
 
     }
 
@@ -88,43 +186,70 @@ public class Peripheral extends BluetoothGattCallback {
             gatt.close();
             gatt = null;
         }
-        connected = false;
-        connecting = true;
+        state = ConnectionState.CONNECTING;
+        gattIndex = null;
+        valueCache.clear();
         queueCleanup();
         callbackCleanup();
+        resetConnectionParameters();
 
         BluetoothDevice device = getDevice();
         if (Build.VERSION.SDK_INT < 23) {
-            gatt = device.connectGatt(currentActivity, autoconnect, this);
+            gatt = device.connectGatt(context, autoconnect, gattCallback);
         } else {
-            gatt = device.connectGatt(currentActivity, autoconnect, this, BluetoothDevice.TRANSPORT_LE);
+            gatt = device.connectGatt(context, autoconnect, gattCallback, BluetoothDevice.TRANSPORT_LE);
         }
 
     }
 
     public void connect(CallbackContext callbackContext, Activity activity, boolean auto) {
-        currentActivity = activity;
-        autoconnect = auto;
-        connectCallback = callbackContext;
-
-        gattConnect();
+        postConnect(callbackContext, activity, auto);
 
         PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
         result.setKeepCallback(true);
         callbackContext.sendPluginResult(result);
     }
 
+    // Auto-connects without a connect callback, for the background service
+    void connectInBackground(Context context) {
+        postConnect(null, context, true);
+    }
+
+    private void postConnect(final CallbackContext callbackContext, final Context context, final boolean auto) {
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                Peripheral.this.context = context;
+                autoconnect = auto;
+                connectCallback = callbackContext;
+                gattConnect();
+            }
+        });
+    }
+
     // the app requested the central disconnect from the peripheral
     // disconnect the gatt, do not call connectCallback.error
     public void disconnect() {
-        connected = false;
-        connecting = false;
+        state = ConnectionState.DISCONNECTED;
+
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                closeGatt();
+            }
+        });
+    }
+
+    private void closeGatt() {
+        state = ConnectionState.DISCONNECTED;
 
         if (gatt != null) {
             gatt.disconnect();
             gatt.close();
             gatt = null;
         }
+        gattIndex = null;
+        valueCache.clear();
         queueCleanup();
         callbackCleanup();
     }
@@ -132,8 +257,7 @@ public class Peripheral extends BluetoothGattCallback {
     // the peripheral disconnected
     // always call connectCallback.error to notify the app
     private void peripheralDisconnected() {
-        connected = false;
-        connecting = false;
+        state = ConnectionState.DISCONNECTED;
 
         // don't remove the gatt for autoconnect
         if (!autoconnect && gatt != null) {
@@ -144,6 +268,8 @@ public class Peripheral extends BluetoothGattCallback {
 
         sendDisconnectMessage();
 
+        gattIndex = null;
+        valueCache.clear();
         queueCleanup();
         callbackCleanup();
     }
@@ -163,19 +289,312 @@ public class Peripheral extends BluetoothGattCallback {
         }
     }
 
-    @Override
-    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+    void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
         LOG.d(TAG, "mtu=" + mtu + ", status=" + status);
-        super.onMtuChanged(gatt, mtu, status);
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+        }
+        if (!isCurrentCommand(BLECommand.REQUEST_MTU)) {
+            return;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            currentCommand.getCallbackContext().success(mtu);
+        } else {
+            currentCommand.getCallbackContext().error("Request MTU failed status=" + status);
+        }
+
+        commandCompleted();
     }
 
-    public void requestMtu(int mtuValue) {
-        if (gatt != null) {
+    // the connection interval changed, Android 8.0 and later
+    void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+        LOG.d(TAG, "onConnectionUpdated interval=" + interval + " latency=" + latency + " timeout=" + timeout + " status=" + status);
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            connectionInterval = interval;
+            connectionLatency = latency;
+            supervisionTimeout = timeout;
+        }
+        if (!isCurrentCommand(BLECommand.REQUEST_CONNECTION_PRIORITY)) {
+            return;
+        }
+        handler().removeCallbacks(connectionUpdateRunnable);
+        currentCommand.getCallbackContext().success(connectionParametersJSON());
+
+        commandCompleted();
+    }
+
+    private void onConnectionUpdateTimeout() {
+        if (!isCurrentCommand(BLECommand.REQUEST_CONNECTION_PRIORITY)) {
+            return;
+        }
+        LOG.d(TAG, "No connection update, the connection parameters didn't change");
+        currentCommand.getCallbackContext().success(connectionParametersJSON());
+
+        commandCompleted();
+    }
+
+    void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        LOG.d(TAG, "onPhyUpdate tx=" + txPhy + " rx=" + rxPhy + " status=" + status);
+        onPhy(txPhy, rxPhy, status);
+    }
+
+    void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        LOG.d(TAG, "onPhyRead tx=" + txPhy + " rx=" + rxPhy + " status=" + status);
+        onPhy(txPhy, rxPhy, status);
+    }
+
+    private void onPhy(int txPhy, int rxPhy, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+        }
+        if (!isCurrentCommand(BLECommand.SET_PREFERRED_PHY)) {
+            return;
+        }
+        handler().removeCallbacks(phyReadRunnable);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            currentCommand.getCallbackContext().success(phyJSON());
+        } else {
+            currentCommand.getCallbackContext().error("Set preferred PHY failed status=" + status);
+        }
+
+        commandCompleted();
+    }
+
+    private void resetConnectionParameters() {
+        mtu = DEFAULT_MTU;
+        connectionPriority = -1;
+        txPhy = 0;
+        rxPhy = 0;
+        connectionInterval = 0;
+        connectionLatency = 0;
+        supervisionTimeout = 0;
+    }
+
+    /**
+     * Sets the connection parameters requested after connecting, before the connect callback succeeds
+     * @param mtu 0 to keep the default
+     * @param connectionPriority -1 to keep the default
+     * @param phy null to keep the default
+     */
+    public void setConnectParameters(int mtu, int connectionPriority, String phy) {
+        this.connectMtu = mtu;
+        this.connectPriority = connectionPriority;
+        this.connectPhy = phy;
+    }
+
+    private boolean hasConnectParameters() {
+        return connectMtu > 0 || connectPriority >= 0 || connectPhy != null;
+    }
+
+    // Requests the connect parameters with queued commands, the connect callback succeeds after the last one
+    private void queueConnectParameters() {
+        int count = (connectMtu > 0 ? 1 : 0) + (connectPriority >= 0 ? 1 : 0) + (connectPhy != null ? 1 : 0);
+        ConnectParametersCallback callback = new ConnectParametersCallback(count);
+
+        // urgent, so they go before anything the app queued while connecting
+        List<BLECommand> commands = new ArrayList<BLECommand>();
+        if (connectMtu > 0) {
+            commands.add(new BLECommand(callback, connectMtu, 0, BLECommand.REQUEST_MTU));
+        }
+        if (connectPriority >= 0) {
+            commands.add(new BLECommand(callback, connectPriority, 0, BLECommand.REQUEST_CONNECTION_PRIORITY));
+        }
+        if (connectPhy != null) {
+            commands.add(new BLECommand(callback, phyMask(connectPhy), phyOptions(connectPhy), BLECommand.SET_PREFERRED_PHY));
+        }
+        for (BLECommand command : commands) {
+            command.setPriority(BLECommandQueue.URGENT);
+            queueCommand(command, null);
+        }
+    }
+
+    private void sendConnectSuccess() {
+        if (state == ConnectionState.CONNECTED && connectCallback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, this.asJSONObject(gatt));
+            result.setKeepCallback(true);
+            connectCallback.sendPluginResult(result);
+        }
+    }
+
+    /**
+     * Receives the results of the commands requesting the connect parameters. Failures are only logged,
+     * the peripheral still works with the default parameters.
+     */
+    private class ConnectParametersCallback extends CallbackContext {
+
+        private int remaining;
+
+        ConnectParametersCallback(int commands) {
+            super(null, null);
+            this.remaining = commands;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            if (result.getStatus() == PluginResult.Status.NO_RESULT.ordinal()) {
+                return;
+            }
+            if (result.getStatus() != PluginResult.Status.OK.ordinal()) {
+                LOG.w(TAG, "Connect parameter failed " + result.getMessage());
+            }
+            remaining--;
+            if (remaining == 0) {
+                sendConnectSuccess();
+            }
+        }
+    }
+
+    // "high", "balanced" or "lowPower"
+    static int parseConnectionPriority(String priority) {
+        if (priority.equals("high")) {
+            return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        } else if (priority.equals("balanced")) {
+            return BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        } else if (priority.equals("lowPower")) {
+            return BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        }
+        throw new IllegalArgumentException("Unknown connectionPriority " + priority);
+    }
+
+    private static String connectionPriorityName(int priority) {
+        if (priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            return "high";
+        } else if (priority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+            return "lowPower";
+        }
+        return "balanced";
+    }
+
+    // "1M", "2M", "coded", "codedS2" or "codedS8"
+    static int phyMask(String phy) {
+        if (phy.equals("1M")) {
+            return BluetoothDevice.PHY_LE_1M_MASK;
+        } else if (phy.equals("2M")) {
+            return BluetoothDevice.PHY_LE_2M_MASK;
+        } else if (phy.equals("coded") || phy.equals("codedS2") || phy.equals("codedS8")) {
+            return BluetoothDevice.PHY_LE_CODED_MASK;
+        }
+        throw new IllegalArgumentException("Unknown phy " + phy);
+    }
+
+    static int phyOptions(String phy) {
+        if (phy.equals("codedS2")) {
+            return BluetoothDevice.PHY_OPTION_S2;
+        } else if (phy.equals("codedS8")) {
+            return BluetoothDevice.PHY_OPTION_S8;
+        }
+        return BluetoothDevice.PHY_OPTION_NO_PREFERRED;
+    }
+
+    private static String phyName(int phy) {
+        if (phy == BluetoothDevice.PHY_LE_1M) {
+            return "1M";
+        } else if (phy == BluetoothDevice.PHY_LE_2M) {
+            return "2M";
+        } else if (phy == BluetoothDevice.PHY_LE_CODED) {
+            return "coded";
+        }
+        return "unknown";
+    }
+
+    private JSONObject connectionParametersJSON() {
+        JSONObject json = new JSONObject();
+
+        try {
+            json.put("connectionPriority", connectionPriorityName(connectionPriority));
+            if (connectionInterval > 0) {
+                json.put("interval", connectionInterval * 1.25);
+                json.put("latency", connectionLatency);
+                json.put("supervisionTimeout", supervisionTimeout * 10);
+            }
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+
+        return json;
+    }
+
+    private JSONObject phyJSON() {
+        JSONObject json = new JSONObject();
+
+        try {
+            json.put("txPhy", phyName(txPhy));
+            json.put("rxPhy", phyName(rxPhy));
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+
+        return json;
+    }
+
+    private void requestMtu(CallbackContext callbackContext, int mtuValue) {
+
+        boolean success = false;
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            callbackContext.error("requestMtu requires Android 5.0");
+        } else if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+        } else {
             LOG.d(TAG, "requestMtu mtu=" + mtuValue);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                gatt.requestMtu(mtuValue);
+            if (gatt.requestMtu(mtuValue)) {
+                success = true;
+            } else {
+                callbackContext.error("Request MTU failed");
+            }
+        }
+
+        if (!success) {
+            commandCompleted();
+        }
+    }
+
+    private void requestConnectionPriority(CallbackContext callbackContext, int priority) {
+
+        boolean success = false;
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            callbackContext.error("requestConnectionPriority requires Android 5.0");
+        } else if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+        } else {
+            LOG.d(TAG, "requestConnectionPriority priority=" + priority);
+            if (gatt.requestConnectionPriority(priority)) {
+                success = true;
+                connectionPriority = priority;
+                handler().postDelayed(connectionUpdateRunnable, CONNECTION_UPDATE_TIMEOUT);
+            } else {
+                callbackContext.error("Request connection priority failed");
             }
         }
+
+        if (!success) {
+            commandCompleted();
+        }
+    }
+
+    private void setPreferredPhy(CallbackContext callbackContext, int phyMask, int phyOptions) {
+
+        boolean success = false;
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            callbackContext.error("setPreferredPhy requires Android 8.0");
+        } else if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+        } else {
+            LOG.d(TAG, "setPreferredPhy mask=" + phyMask + " options=" + phyOptions);
+            gatt.setPreferredPhy(phyMask, phyMask, phyOptions);
+            success = true;
+            // read the PHY if the stack doesn't call onPhyUpdate
+            handler().postDelayed(phyReadRunnable, CONNECTION_UPDATE_TIMEOUT);
+        }
+
+        if (!success) {
+            commandCompleted();
+        }
     }
 
     /**
@@ -186,7 +605,16 @@ public class Peripheral extends BluetoothGattCallback {
      * Since this uses an undocumented API it's not guaranteed to work.
      *
      */
-    public void refreshDeviceCache(CallbackContext callback, final long timeoutMillis) {
+    public void refreshDeviceCache(final CallbackContext callback, final long timeoutMillis) {
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                refreshGatt(callback, timeoutMillis);
+            }
+        });
+    }
+
+    private void refreshGatt(CallbackContext callback, final long timeoutMillis) {
         LOG.d(TAG, "refreshDeviceCache");
 
         boolean success = false;
@@ -196,13 +624,16 @@ public class Peripheral extends BluetoothGattCallback {
                 if (refresh != null) {
                     success = (Boolean)refresh.invoke(gatt);
                     if (success) {
+                        gattIndex = null;
+                        valueCache.clear();
                         this.refreshCallback = callback;
-                        Handler handler = new Handler();
-                        handler.postDelayed(new Runnable() {
+                        handler().postDelayed(new Runnable() {
                             @Override
                             public void run() {
                                 LOG.d(TAG, "Waiting " + timeoutMillis + " milliseconds before discovering services");
-                                gatt.discoverServices();
+                                if (gatt != null) {
+                                    gatt.discoverServices();
+                                }
                             }
                         }, timeoutMillis);
                     }
@@ -223,6 +654,16 @@ public class Peripheral extends BluetoothGattCallback {
         return advertisingData == null;
     }
 
+    public AdvertisingData getParsedAdvertising() {
+        if (advertisingData == null) {
+            return null;
+        }
+        if (parsedAdvertising == null || !parsedAdvertising.isParsedFrom(advertisingData)) {
+            parsedAdvertising = AdvertisingData.parse(advertisingData);
+        }
+        return parsedAdvertising;
+    }
+
     public JSONObject asJSONObject()  {
 
         JSONObject json = new JSONObject();
@@ -269,7 +710,18 @@ public class Peripheral extends BluetoothGattCallback {
             json.put("services", servicesArray);
             json.put("characteristics", characteristicsArray);
 
-            if (connected && gatt != null) {
+            if (state == ConnectionState.CONNECTED) {
+                json.put("mtu", mtu);
+                if (connectionPriority >= 0) {
+                    json.put("connectionPriority", connectionPriorityName(connectionPriority));
+                }
+                if (txPhy > 0) {
+                    json.put("txPhy", phyName(txPhy));
+                    json.put("rxPhy", phyName(rxPhy));
+                }
+            }
+
+            if (state == ConnectionState.CONNECTED && gatt != null) {
                 for (BluetoothGattService service : gatt.getServices()) {
                     servicesArray.put(UUIDHelper.uuidToString(service.getUuid()));
 
@@ -323,31 +775,32 @@ public class Peripheral extends BluetoothGattCallback {
     }
 
     public boolean isConnected() {
-        return connected;
+        return state == ConnectionState.CONNECTED;
     }
 
     public boolean isConnecting() {
-        return connecting;
+        return state == ConnectionState.CONNECTING;
     }
 
     public BluetoothDevice getDevice() {
         return device;
     }
 
-    @Override
-    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        super.onServicesDiscovered(gatt, status);
+    void onServicesDiscovered(BluetoothGatt gatt, int status) {
 
         // refreshCallback is a kludge for refreshing services, if it exists, it temporarily
         // overrides the connect callback. Unfortunately this edge case make the code confusing.
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
+            gattIndex = new GattIndex(gatt.getServices());
             PluginResult result = new PluginResult(PluginResult.Status.OK, this.asJSONObject(gatt));
             result.setKeepCallback(true);
             if (refreshCallback != null) {
                 refreshCallback.sendPluginResult(result);
                 refreshCallback = null;
-            } else {
+            } else if (hasConnectParameters()) {
+                queueConnectParameters();
+            } else if (connectCallback != null) {
                 connectCallback.sendPluginResult(result);
             }
         } else {
@@ -356,108 +809,160 @@ public class Peripheral extends BluetoothGattCallback {
                 refreshCallback.error(this.asJSONObject("Service discovery failed"));
                 refreshCallback = null;
             } else {
-                connectCallback.error(this.asJSONObject("Service discovery failed"));
+                if (connectCallback != null) {
+                    connectCallback.error(this.asJSONObject("Service discovery failed"));
+                }
                 disconnect();
             }
         }
     }
 
-    @Override
-    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+    void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
 
         this.gatt = gatt;
 
         if (newState == BluetoothGatt.STATE_CONNECTED) {
             LOG.d(TAG, "onConnectionStateChange CONNECTED");
-            connected = true;
-            connecting = false;
+            state = ConnectionState.CONNECTED;
             gatt.discoverServices();
 
         } else {  // Disconnected
             LOG.d(TAG, "onConnectionStateChange DISCONNECTED");
-            connected = false;
             peripheralDisconnected();
 
         }
 
     }
 
-    @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        super.onCharacteristicChanged(gatt, characteristic);
-        LOG.d(TAG, "onCharacteristicChanged " + characteristic);
+    void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        if (LOG.isLoggable(LOG.DEBUG)) {
+            LOG.d(TAG, "onCharacteristicChanged " + characteristic);
+        }
 
-        CallbackContext callback = notificationCallbacks.get(generateHashKey(characteristic));
+        valueCache.invalidate(characteristic);
 
-        if (callback != null) {
-            PluginResult result = new PluginResult(PluginResult.Status.OK, characteristic.getValue());
-            result.setKeepCallback(true);
-            callback.sendPluginResult(result);
+        NotificationRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.record(characteristic);
+        }
+
+        NotificationSubscription subscription = findSubscription(characteristic);
+
+        if (subscription != null) {
+            subscription.onNotification(characteristic.getValue());
         }
     }
 
-    @Override
-    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        super.onCharacteristicRead(gatt, characteristic, status);
+    // the value is copied when the callback arrives, the characteristic can change before this runs
+    void onCharacteristicRead(BluetoothGattCharacteristic characteristic, byte[] value, int status) {
         LOG.d(TAG, "onCharacteristicRead " + characteristic);
 
-        synchronized(this) {
-            if (readCallback != null) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    readCallback.success(characteristic.getValue());
-                } else {
-                    readCallback.error("Error reading " + characteristic.getUuid() + " status=" + status);
+        if (isCurrentCommand(BLECommand.READ_MANY) && !currentCommand.getBatchRead().isFinished()
+                && characteristic.getUuid().equals(currentCommand.getBatchRead().getCharacteristicUUID())) {
+            BatchRead batchRead = currentCommand.getBatchRead();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                batchRead.onValue(value);
+            } else {
+                batchRead.onError("Error reading " + characteristic.getUuid() + " status=" + status);
+            }
+            restartWatchdog(currentCommand);
+            readNextInBatch();
+            return;
+        }
+        if (!isCurrentCommand(BLECommand.READ, characteristic)) {
+            LOG.w(TAG, "Ignoring late read of " + characteristic.getUuid());
+            return;
+        }
+        if (readCallback != null) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (currentCommand.getCacheTtl() > 0) {
+                    valueCache.put(characteristic, value, currentCommand.getCacheTtl(), SystemClock.elapsedRealtime());
                 }
-
-                readCallback = null;
+                ValueDecoder decoder = currentCommand.getDecoder();
+                readCallback.success(decoder != null ? decoder.decode(value) : value);
+            } else {
+                readCallback.error("Error reading " + characteristic.getUuid() + " status=" + status);
             }
+
+            readCallback = null;
         }
 
         commandCompleted();
     }
 
-    @Override
-    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        super.onCharacteristicWrite(gatt, characteristic, status);
+    // value is the copy taken when the callback arrived, reliable writes compare it to the prepared data
+    void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, byte[] value, int status) {
         LOG.d(TAG, "onCharacteristicWrite " + characteristic);
+        valueCache.invalidate(characteristic);
 
-        synchronized(this) {
-            if (writeCallback != null) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    writeCallback.success();
-                } else {
-                    writeCallback.error(status);
-                }
-
-                writeCallback = null;
+        if (currentCommand != null && currentCommand.getType() == BLECommand.WRITE_STREAM
+                && characteristic.getUuid().equals(currentCommand.getCharacteristicUUID())) {
+            onStreamWrite(status);
+            return;
+        }
+        if (isCurrentCommand(BLECommand.RELIABLE_WRITE) && !currentCommand.getReliableWrite().isPrepared()
+                && characteristic.getUuid().equals(currentCommand.getReliableWrite().getCharacteristicUUID())) {
+            onReliableWritePrepared(characteristic, value, status);
+            return;
+        }
+        if (currentCommand == null || !currentCommand.isWrite() || !characteristic.getUuid().equals(currentCommand.getCharacteristicUUID())) {
+            LOG.w(TAG, "Ignoring late write of " + characteristic.getUuid());
+            return;
+        }
+        if (writeCallback != null) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                writeCallback.success();
+            } else {
+                writeCallback.error(status);
             }
+
+            writeCallback = null;
         }
 
         commandCompleted();
     }
 
-    @Override
-    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        super.onDescriptorWrite(gatt, descriptor, status);
-        LOG.d(TAG, "onDescriptorWrite " + descriptor);
+    void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+        LOG.d(TAG, "onReliableWriteCompleted status=" + status);
+
+        if (!isCurrentCommand(BLECommand.RELIABLE_WRITE) || !currentCommand.getReliableWrite().isExecuting()) {
+            LOG.w(TAG, "Ignoring late reliable write");
+            return;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            currentCommand.getCallbackContext().success();
+        } else {
+            currentCommand.getCallbackContext().error("Reliable write failed status=" + status);
+        }
+
         commandCompleted();
     }
 
+    void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        LOG.d(TAG, "onDescriptorWrite " + descriptor);
 
-    @Override
-    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-        super.onReadRemoteRssi(gatt, rssi, status);
-        synchronized(this) {
-            if (readCallback != null) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    updateRssi(rssi);
-                    readCallback.success(rssi);
-                } else {
-                    readCallback.error("Error reading RSSI status=" + status);
-                }
+        // stopNotification doesn't wait for its descriptor write
+        if (!isCurrentCommand(BLECommand.REGISTER_NOTIFY, descriptor.getCharacteristic())) {
+            return;
+        }
+        commandCompleted();
+    }
 
-                readCallback = null;
+
+    void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+        if (currentCommand == null || currentCommand.getType() != BLECommand.READ_RSSI) {
+            LOG.w(TAG, "Ignoring late RSSI read");
+            return;
+        }
+        if (readCallback != null) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                updateRssi(rssi);
+                readCallback.success(rssi);
+            } else {
+                readCallback.error("Error reading RSSI status=" + status);
             }
+
+            readCallback = null;
         }
         commandCompleted();
     }
@@ -466,29 +971,66 @@ public class Peripheral extends BluetoothGattCallback {
     public void update(int rssi, byte[] scanRecord) {
         this.advertisingRSSI = rssi;
         this.advertisingData = scanRecord;
+        this.lastSeen = SystemClock.elapsedRealtime();
+    }
+
+    // the peripheral's thread, started on first use
+    synchronized Handler handler() {
+        if (handler == null) {
+            thread = new HandlerThread("BLE " + device.getAddress());
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    // Stops the peripheral's thread once it is disconnected, called when the peripheral is removed from the registry.
+    // Work that is already posted, like closing the GATT, still runs. A later connect starts a new thread.
+    synchronized void release() {
+        if (thread != null && state == ConnectionState.DISCONNECTED) {
+            thread.quitSafely();
+            thread = null;
+            handler = null;
+        }
+    }
+
+    // elapsedRealtime of the last advertisement
+    public long getLastSeen() {
+        return lastSeen;
     }
 
     public void updateRssi(int rssi) {
         advertisingRSSI = rssi;
     }
 
+    // the index of the discovered services, built now if the services were refreshed and not discovered again
+    private GattIndex gattIndex() {
+        GattIndex index = gattIndex;
+        if (index == null) {
+            index = new GattIndex(gatt.getServices());
+            gattIndex = index;
+        }
+        return index;
+    }
+
     // This seems way too complicated
-    private void registerNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
+    private void registerNotifyCallback(CallbackContext callbackContext, NotificationSubscription subscription) {
 
         boolean success = false;
+        UUID serviceUUID = subscription.serviceUUID;
+        UUID characteristicUUID = subscription.characteristicUUID;
 
         if (gatt == null) {
             callbackContext.error("BluetoothGatt is null");
             return;
         }
 
-        BluetoothGattService service = gatt.getService(serviceUUID);
-        BluetoothGattCharacteristic characteristic = findNotifyCharacteristic(service, characteristicUUID);
-        String key = generateHashKey(serviceUUID, characteristic);
+        BluetoothGattCharacteristic characteristic = gattIndex().findNotify(serviceUUID, characteristicUUID);
 
         if (characteristic != null) {
 
-            notificationCallbacks.put(key, callbackContext);
+            subscription.bind(characteristic);
+            addSubscription(subscription);
 
             if (gatt.setCharacteristicNotification(characteristic, true)) {
 
@@ -535,13 +1077,11 @@ public class Peripheral extends BluetoothGattCallback {
             return;
         }
 
-        BluetoothGattService service = gatt.getService(serviceUUID);
-        BluetoothGattCharacteristic characteristic = findNotifyCharacteristic(service, characteristicUUID);
-        String key = generateHashKey(serviceUUID, characteristic);
+        BluetoothGattCharacteristic characteristic = gattIndex().findNotify(serviceUUID, characteristicUUID);
 
         if (characteristic != null) {
 
-            notificationCallbacks.remove(key);
+            removeSubscriptions(serviceUUID, characteristic, null);
 
             if (gatt.setCharacteristicNotification(characteristic, false)) {
                 BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
@@ -563,68 +1103,34 @@ public class Peripheral extends BluetoothGattCallback {
 
     }
 
-    // Some devices reuse UUIDs across characteristics, so we can't use service.getCharacteristic(characteristicUUID)
-    // instead check the UUID and properties for each characteristic in the service until we find the best match
-    // This function prefers Notify over Indicate
-    private BluetoothGattCharacteristic findNotifyCharacteristic(BluetoothGattService service, UUID characteristicUUID) {
-        BluetoothGattCharacteristic characteristic = null;
 
-        // Check for Notify first
-        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-        for (BluetoothGattCharacteristic c : characteristics) {
-            if ((c.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0 && characteristicUUID.equals(c.getUuid())) {
-                characteristic = c;
-                break;
-            }
-        }
+    private void readCharacteristic(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
 
-        if (characteristic != null) return characteristic;
+        boolean success = false;
 
-        // If there wasn't Notify Characteristic, check for Indicate
-        for (BluetoothGattCharacteristic c : characteristics) {
-            if ((c.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0 && characteristicUUID.equals(c.getUuid())) {
-                characteristic = c;
-                break;
-            }
+        if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+            return;
         }
 
-        // As a last resort, try and find ANY characteristic with this UUID, even if it doesn't have the correct properties
-        if (characteristic == null) {
-            characteristic = service.getCharacteristic(characteristicUUID);
-        }
+        GattIndex index = gattIndex();
 
-        return characteristic;
-    }
-
-    private void readCharacteristic(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
-
-        boolean success = false;
-
-        if (gatt == null) {
-            callbackContext.error("BluetoothGatt is null");
-            return;
-        }
-
-        BluetoothGattService service = gatt.getService(serviceUUID);
-
-        if (service == null) {
+        if (!index.hasService(serviceUUID)) {
             callbackContext.error("Service " + serviceUUID + " not found.");
             return;
         }
 
-        BluetoothGattCharacteristic characteristic = findReadableCharacteristic(service, characteristicUUID);
+        BluetoothGattCharacteristic characteristic = index.findReadable(serviceUUID, characteristicUUID);
 
         if (characteristic == null) {
             callbackContext.error("Characteristic " + characteristicUUID + " not found.");
         } else {
-            synchronized(this) {
-                readCallback = callbackContext;
-                if (gatt.readCharacteristic(characteristic)) {
-                    success = true;
-                } else {
-                    readCallback = null;
-                    callbackContext.error("Read failed");
-                }
+            readCallback = callbackContext;
+            if (gatt.readCharacteristic(characteristic)) {
+                success = true;
+            } else {
+                readCallback = null;
+                callbackContext.error("Read failed");
             }
         }
 
@@ -643,15 +1149,13 @@ public class Peripheral extends BluetoothGattCallback {
             return;
         }
 
-        synchronized(this) {
-            readCallback = callbackContext;
+        readCallback = callbackContext;
 
-            if (gatt.readRemoteRssi()) {
-                success = true;
-            } else {
-                readCallback = null;
-                callbackContext.error("Read RSSI failed");
-            }
+        if (gatt.readRemoteRssi()) {
+            success = true;
+        } else {
+            readCallback = null;
+            callbackContext.error("Read RSSI failed");
         }
 
         if (!success) {
@@ -660,129 +1164,498 @@ public class Peripheral extends BluetoothGattCallback {
 
     }
 
-    // Some peripherals re-use UUIDs for multiple characteristics so we need to check the properties
-    // and UUID of all characteristics instead of using service.getCharacteristic(characteristicUUID)
-    private BluetoothGattCharacteristic findReadableCharacteristic(BluetoothGattService service, UUID characteristicUUID) {
-        BluetoothGattCharacteristic characteristic = null;
 
-        int read = BluetoothGattCharacteristic.PROPERTY_READ;
+    private void writeCharacteristic(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType) {
 
-        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-        for (BluetoothGattCharacteristic c : characteristics) {
-            if ((c.getProperties() & read) != 0 && characteristicUUID.equals(c.getUuid())) {
-                characteristic = c;
-                break;
-            }
+        boolean success = false;
+
+        if (gatt == null) {
+            callbackContext.error("BluetoothGatt is null");
+            return;
+        }
+
+        GattIndex index = gattIndex();
+
+        if (!index.hasService(serviceUUID)) {
+            callbackContext.error("Service " + serviceUUID + " not found.");
+            return;
         }
 
-        // As a last resort, try and find ANY characteristic with this UUID, even if it doesn't have the correct properties
+        BluetoothGattCharacteristic characteristic = index.findWritable(serviceUUID, characteristicUUID, writeType);
+
         if (characteristic == null) {
-            characteristic = service.getCharacteristic(characteristicUUID);
+            callbackContext.error("Characteristic " + characteristicUUID + " not found.");
+        } else {
+            characteristic.setValue(data);
+            characteristic.setWriteType(writeType);
+            writeCallback = callbackContext;
+
+            if (gatt.writeCharacteristic(characteristic)) {
+                success = true;
+            } else {
+                writeCallback = null;
+                callbackContext.error("Write failed");
+            }
+        }
+
+        if (!success) {
+            commandCompleted();
         }
 
-        return characteristic;
     }
 
-    private void writeCharacteristic(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType) {
 
-        boolean success = false;
+    // Writes the packets of the stream back to back, the command completes when the last packet is confirmed
+    private void startStream(BLECommand command) {
+        CallbackContext callbackContext = command.getCallbackContext();
 
         if (gatt == null) {
             callbackContext.error("BluetoothGatt is null");
+            commandCompleted();
             return;
         }
 
-        BluetoothGattService service = gatt.getService(serviceUUID);
+        GattIndex index = gattIndex();
 
-        if (service == null) {
-            callbackContext.error("Service " + serviceUUID + " not found.");
+        if (!index.hasService(command.getServiceUUID())) {
+            callbackContext.error("Service " + command.getServiceUUID() + " not found.");
+            commandCompleted();
             return;
         }
 
-        BluetoothGattCharacteristic characteristic = findWritableCharacteristic(service, characteristicUUID, writeType);
+        BluetoothGattCharacteristic characteristic = index.findWritable(command.getServiceUUID(), command.getCharacteristicUUID(), BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
 
         if (characteristic == null) {
-            callbackContext.error("Characteristic " + characteristicUUID + " not found.");
-        } else {
-            characteristic.setValue(data);
-            characteristic.setWriteType(writeType);
-            synchronized(this) {
-                writeCallback = callbackContext;
+            callbackContext.error("Characteristic " + command.getCharacteristicUUID() + " not found.");
+            commandCompleted();
+            return;
+        }
 
-                if (gatt.writeCharacteristic(characteristic)) {
-                    success = true;
-                } else {
-                    writeCallback = null;
-                    callbackContext.error("Write failed");
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        streamCharacteristic = characteristic;
+        // the MTU when the stream starts, a requestMtu queued before the stream has finished
+        command.getStream().start(System.nanoTime(), mtu - 3);
+        pumpStream();
+    }
+
+    // write the next packet, the stack takes one write at a time
+    private void pumpStream() {
+        BLECommand command = currentCommand;
+        if (command == null || command.getType() != BLECommand.WRITE_STREAM || gatt == null) {
+            return;
+        }
+        WriteStream stream = command.getStream();
+
+        if (stream.canSend()) {
+            byte[] packet = stream.nextPacket();
+            streamCharacteristic.setValue(packet);
+            if (gatt.writeCharacteristic(streamCharacteristic)) {
+                stream.onSent(packet.length);
+            } else {
+                // no confirmation is coming to continue the stream
+                int busy = stream.onBusy();
+                if (busy > STREAM_MAX_RETRIES) {
+                    LOG.w(TAG, "Write stream failed, the stack refused " + busy + " writes in a row");
+                    streamCharacteristic = null;
+                    command.getCallbackContext().error("Write stream failed, the Bluetooth stack is busy");
+                    commandCompleted();
+                    return;
                 }
+                handler().postDelayed(streamRetryRunnable, Math.min(STREAM_MAX_RETRY_DELAY, STREAM_RETRY_DELAY << (busy - 1)));
             }
+            return;
         }
 
-        if (!success) {
+        if (stream.isFinished()) {
+            LOG.d(TAG, "Write stream finished");
+            streamCharacteristic = null;
+            command.getCallbackContext().success(stream.asJSONObject(System.nanoTime()));
             commandCompleted();
         }
+    }
+
+    private void onStreamWrite(int status) {
+        BLECommand command = currentCommand;
 
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            streamCharacteristic = null;
+            handler().removeCallbacks(streamRetryRunnable);
+            command.getCallbackContext().error("Write failed status=" + status);
+            commandCompleted();
+            return;
+        }
+
+        command.getStream().onConfirmed();
+        restartWatchdog(command);
+        pumpStream();
     }
 
-    // Some peripherals re-use UUIDs for multiple characteristics so we need to check the properties
-    // and UUID of all characteristics instead of using service.getCharacteristic(characteristicUUID)
-    private BluetoothGattCharacteristic findWritableCharacteristic(BluetoothGattService service, UUID characteristicUUID, int writeType) {
-        BluetoothGattCharacteristic characteristic = null;
+    // Long running commands time out when they stop making progress, not when they take long
+    private void restartWatchdog(BLECommand command) {
+        if (command.getTimeout() > 0) {
+            handler().removeCallbacks(watchdogRunnable);
+            handler().postDelayed(watchdogRunnable, command.getTimeout());
+        }
+    }
 
-        // get write property
-        int writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE;
-        if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
-            writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+    private void startReliableWrite() {
+        if (gatt == null) {
+            currentCommand.getCallbackContext().error("BluetoothGatt is null");
+            commandCompleted();
+            return;
         }
 
-        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-        for (BluetoothGattCharacteristic c : characteristics) {
-            if ((c.getProperties() & writeProperty) != 0 && characteristicUUID.equals(c.getUuid())) {
-                characteristic = c;
-                break;
+        if (!gatt.beginReliableWrite()) {
+            currentCommand.getCallbackContext().error("Begin reliable write failed");
+            commandCompleted();
+            return;
+        }
+
+        writeNextReliable();
+    }
+
+    // Prepares the next write of the transaction, or executes the transaction after the last one
+    private void writeNextReliable() {
+        ReliableWrite reliableWrite = currentCommand.getReliableWrite();
+
+        if (reliableWrite.isPrepared()) {
+            reliableWrite.setExecuting();
+            if (!gatt.executeReliableWrite()) {
+                abortReliableWrite("Execute reliable write failed");
             }
+            return; // onReliableWriteCompleted finishes the command
         }
 
-        // As a last resort, try and find ANY characteristic with this UUID, even if it doesn't have the correct properties
+        GattIndex index = gattIndex();
+        if (!index.hasService(reliableWrite.getServiceUUID())) {
+            abortReliableWrite("Service " + reliableWrite.getServiceUUID() + " not found.");
+            return;
+        }
+
+        BluetoothGattCharacteristic characteristic = index.findWritable(reliableWrite.getServiceUUID(), reliableWrite.getCharacteristicUUID(), BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
         if (characteristic == null) {
-            characteristic = service.getCharacteristic(characteristicUUID);
+            abortReliableWrite("Characteristic " + reliableWrite.getCharacteristicUUID() + " not found.");
+            return;
+        }
+
+        characteristic.setValue(reliableWrite.getValue());
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        if (!gatt.writeCharacteristic(characteristic)) {
+            abortReliableWrite("Write failed");
+        }
+    }
+
+    private void onReliableWritePrepared(BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+        ReliableWrite reliableWrite = currentCommand.getReliableWrite();
+
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            abortReliableWrite("Write of " + characteristic.getUuid() + " failed status=" + status);
+        } else if (!reliableWrite.onEcho(value)) {
+            abortReliableWrite("Peripheral echoed a different value for " + characteristic.getUuid());
+        } else {
+            restartWatchdog(currentCommand);
+            writeNextReliable();
         }
+    }
 
-        return characteristic;
+    // the peripheral discards the prepared writes
+    private void abortReliableWrite(String message) {
+        LOG.w(TAG, "Aborting reliable write: " + message);
+        if (gatt != null) {
+            gatt.abortReliableWrite();
+        }
+        currentCommand.getCallbackContext().error(message);
+        commandCompleted();
     }
 
-    public void queueRead(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
+    // Reads the next characteristic of a readMany, the command completes after the last one
+    private void readNextInBatch() {
+        BLECommand command = currentCommand;
+        BatchRead batchRead = command.getBatchRead();
+
+        while (!batchRead.isFinished()) {
+            if (gatt == null) {
+                batchRead.onError("BluetoothGatt is null");
+                continue;
+            }
+
+            GattIndex index = gattIndex();
+            if (!index.hasService(batchRead.getServiceUUID())) {
+                batchRead.onError("Service " + batchRead.getServiceUUID() + " not found.");
+                continue;
+            }
+
+            BluetoothGattCharacteristic characteristic = index.findReadable(batchRead.getServiceUUID(), batchRead.getCharacteristicUUID());
+            if (characteristic == null) {
+                batchRead.onError("Characteristic " + batchRead.getCharacteristicUUID() + " not found.");
+            } else if (gatt.readCharacteristic(characteristic)) {
+                return; // onCharacteristicRead continues with the next one
+            } else {
+                batchRead.onError("Read failed");
+            }
+        }
+
+        command.getCallbackContext().success(batchRead.getResults());
+        commandCompleted();
+    }
+
+    // options are the per command options from JavaScript, null for the defaults
+    public void queueRead(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, JSONObject options) {
         BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.READ);
-        queueCommand(command);
+        try {
+            command.setDecoder(ValueDecoder.fromOptions(options));
+            command.setCacheTtl(ValueCache.ttlFromOptions(options));
+        } catch (IllegalArgumentException e) {
+            callbackContext.error(e.getMessage());
+            return;
+        }
+
+        if (command.getCacheTtl() > 0) {
+            byte[] value = cachedValue(serviceUUID, characteristicUUID);
+            if (value != null) {
+                ValueDecoder decoder = command.getDecoder();
+                callbackContext.success(decoder != null ? decoder.decode(value) : value);
+                return;
+            }
+        }
+        queueCommand(command, options);
+    }
+
+    // answers reads with the cache option without waiting for the queue
+    private byte[] cachedValue(UUID serviceUUID, UUID characteristicUUID) {
+        GattIndex index = gattIndex;
+        if (index == null || state != ConnectionState.CONNECTED) {
+            return null;
+        }
+        BluetoothGattCharacteristic characteristic = index.findReadable(serviceUUID, characteristicUUID);
+        if (characteristic == null) {
+            return null;
+        }
+        return valueCache.get(characteristic, SystemClock.elapsedRealtime());
     }
 
-    public void queueWrite(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType) {
+    public JSONObject getCacheStats() throws JSONException {
+        return valueCache.getStats();
+    }
+
+    public void queueWrite(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType, JSONObject options) {
         BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, data, writeType);
-        queueCommand(command);
+        queueCommand(command, options);
+    }
+
+    /**
+     * Writes data to a writeWithoutResponse characteristic as a single command
+     * @param options packetSize, window and timeout, null for the defaults
+     */
+    public void queueWriteStream(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data, JSONObject options) {
+        WriteStream stream = new WriteStream(data, options);
+        BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, stream);
+        queueCommand(command, options);
+    }
+
+    /**
+     * Reads the characteristics one after the other as a single command
+     * @param serviceUUIDs the service of each characteristic in characteristicUUIDs
+     */
+    public void queueReadMany(CallbackContext callbackContext, List<UUID> serviceUUIDs, List<UUID> characteristicUUIDs, JSONObject options) {
+        BLECommand command = new BLECommand(callbackContext, new BatchRead(serviceUUIDs, characteristicUUIDs));
+        queueCommand(command, options);
+    }
+
+    /**
+     * Writes the values as one reliable write transaction, the peripheral applies all of them or none
+     * @param serviceUUIDs the service of each characteristic in characteristicUUIDs
+     */
+    public void queueReliableWrite(CallbackContext callbackContext, List<UUID> serviceUUIDs, List<UUID> characteristicUUIDs, List<byte[]> values, JSONObject options) {
+        BLECommand command = new BLECommand(callbackContext, new ReliableWrite(serviceUUIDs, characteristicUUIDs, values));
+        queueCommand(command, options);
+    }
+
+    public void queueRequestMtu(CallbackContext callbackContext, int mtu, JSONObject options) {
+        BLECommand command = new BLECommand(callbackContext, mtu, 0, BLECommand.REQUEST_MTU);
+        queueCommand(command, options);
+    }
+
+    // priority is one of the BluetoothGatt.CONNECTION_PRIORITY_* values
+    public void queueRequestConnectionPriority(CallbackContext callbackContext, int priority, JSONObject options) {
+        BLECommand command = new BLECommand(callbackContext, priority, 0, BLECommand.REQUEST_CONNECTION_PRIORITY);
+        queueCommand(command, options);
     }
 
-    public void queueRegisterNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
-        BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.REGISTER_NOTIFY);
-        queueCommand(command);
+    // phy is one of the names accepted by phyMask
+    public void queueSetPreferredPhy(CallbackContext callbackContext, String phy, JSONObject options) {
+        BLECommand command = new BLECommand(callbackContext, phyMask(phy), phyOptions(phy), BLECommand.SET_PREFERRED_PHY);
+        queueCommand(command, options);
     }
 
-    public void queueRemoveNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
+    public void queueRegisterNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, JSONObject options) {
+        NotificationBatch batch;
+        NotificationBuffer buffer;
+        ValueDecoder decoder;
+        try {
+            batch = NotificationBatch.fromOptions(options);
+            buffer = NotificationBuffer.fromOptions(options);
+            decoder = ValueDecoder.fromOptions(options);
+        } catch (IllegalArgumentException e) {
+            callbackContext.error(e.getMessage());
+            return;
+        }
+        NotificationSubscription subscription = new NotificationSubscription(serviceUUID, characteristicUUID, callbackContext, batch, buffer, decoder, handler());
+        BLECommand command = new BLECommand(callbackContext, subscription);
+        queueCommand(command, options);
+    }
+
+    // JavaScript handled a notification message, see NotificationBuffer
+    public void acknowledgeNotification(UUID serviceUUID, UUID characteristicUUID) {
+        NotificationSubscription subscription = findSubscription(serviceUUID, characteristicUUID);
+        if (subscription != null) {
+            subscription.onAck();
+        }
+    }
+
+    /**
+     * @return the notification counters, or null if the characteristic has no subscription
+     */
+    public JSONObject getNotificationStats(UUID serviceUUID, UUID characteristicUUID) throws JSONException {
+        NotificationSubscription subscription = findSubscription(serviceUUID, characteristicUUID);
+        return subscription != null ? subscription.getStats() : null;
+    }
+
+    /**
+     * Records the notifications of the characteristics, see NotificationRecorder. Notifications are started for
+     * the characteristics that don't have them started already, and stopped again by stopRecording.
+     */
+    public void startRecording(CallbackContext callbackContext, File directory, List<UUID> serviceUUIDs, List<UUID> characteristicUUIDs, JSONObject options) throws JSONException {
+        int segmentSize = NotificationRecorder.DEFAULT_SEGMENT_SIZE;
+        int maxSegments = NotificationRecorder.DEFAULT_MAX_SEGMENTS;
+        if (options != null) {
+            segmentSize = options.optInt("segmentSize", segmentSize);
+            maxSegments = options.optInt("maxSegments", maxSegments);
+        }
+        if (segmentSize < NotificationRecorder.MIN_SEGMENT_SIZE || maxSegments <= 0) {
+            callbackContext.error("Invalid recording options, segmentSize must be at least " + NotificationRecorder.MIN_SEGMENT_SIZE + " and maxSegments positive");
+            return;
+        }
+
+        NotificationRecorder started;
+        List<NotificationSubscription> added = new ArrayList<NotificationSubscription>();
+        synchronized(this) {
+            if (recorder != null) {
+                callbackContext.error("Already recording " + recorder.getId());
+                return;
+            }
+
+            try {
+                started = new NotificationRecorder(directory, directory.getName(), serviceUUIDs, characteristicUUIDs, segmentSize, maxSegments, handler());
+            } catch (IOException e) {
+                callbackContext.error("Can't start recording: " + e.getMessage());
+                return;
+            }
+            recorder = started;
+
+            for (int i = 0; i < serviceUUIDs.size(); i++) {
+                if (findSubscription(serviceUUIDs.get(i), characteristicUUIDs.get(i)) == null) {
+                    added.add(new NotificationSubscription(serviceUUIDs.get(i), characteristicUUIDs.get(i), new RecordingCallback()));
+                }
+            }
+            recordingSubscriptions = added;
+        }
+
+        for (NotificationSubscription subscription : added) {
+            queueCommand(new BLECommand(subscription.callback, subscription), null);
+        }
+        callbackContext.success(started.summary(false));
+    }
+
+    public void stopRecording(CallbackContext callbackContext) throws JSONException {
+        NotificationRecorder stopped;
+        List<NotificationSubscription> added;
+        synchronized(this) {
+            if (recorder == null) {
+                callbackContext.error("Not recording");
+                return;
+            }
+            stopped = recorder;
+            added = recordingSubscriptions;
+            recorder = null;
+            recordingSubscriptions = new ArrayList<NotificationSubscription>();
+        }
+
+        // leave the notifications JavaScript started after the recording
+        for (NotificationSubscription subscription : added) {
+            if (findSubscription(subscription.serviceUUID, subscription.characteristicUUID) == subscription) {
+                queueCommand(new BLECommand(subscription.callback, subscription.serviceUUID, subscription.characteristicUUID, BLECommand.REMOVE_NOTIFY), null);
+            }
+        }
+        callbackContext.success(stopped.stop());
+    }
+
+    public boolean isRecording() {
+        return recorder != null;
+    }
+
+    // the id of the running recording, or null
+    public String getRecordingId() {
+        NotificationRecorder recorder = this.recorder;
+        return recorder != null ? recorder.getId() : null;
+    }
+
+    // the notifications startRecording started report their errors to the log
+    private class RecordingCallback extends CallbackContext {
+
+        RecordingCallback() {
+            super(null, null);
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            if (result.getStatus() != PluginResult.Status.OK.ordinal() && result.getStatus() != PluginResult.Status.NO_RESULT.ordinal()) {
+                LOG.w(TAG, "Recording notifications failed " + result.getMessage());
+            }
+        }
+    }
+
+    public void queueRemoveNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, JSONObject options) {
         BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.REMOVE_NOTIFY);
-        queueCommand(command);
+        queueCommand(command, options);
     }
 
 
-    public void queueReadRSSI(CallbackContext callbackContext) {
+    public void queueReadRSSI(CallbackContext callbackContext, JSONObject options) {
         BLECommand command = new BLECommand(callbackContext, null, null, BLECommand.READ_RSSI);
-        queueCommand(command);
+        queueCommand(command, options);
+    }
+
+    /**
+     * @param commandTimeout milliseconds a command can take, including the time in the queue. 0 for no timeout.
+     * @param resetOnTimeout true to close the GATT when a command times out, the stack is usually stuck
+     */
+    public void setCommandTimeout(long commandTimeout, boolean resetOnTimeout) {
+        this.commandTimeout = commandTimeout;
+        this.resetOnTimeout = resetOnTimeout;
     }
 
     private void queueCleanup() {
+        handler().removeCallbacks(watchdogRunnable);
+        handler().removeCallbacks(streamRetryRunnable);
+        handler().removeCallbacks(connectionUpdateRunnable);
+        handler().removeCallbacks(phyReadRunnable);
+        streamCharacteristic = null;
+        // commands that don't use readCallback or writeCallback
+        if (currentCommand != null && hasOwnCallback(currentCommand)) {
+            currentCommand.getCallbackContext().error("Peripheral Disconnected");
+        }
+        if (currentCommand != null) {
+            countWrite(currentCommand, false);
+        }
+        currentCommand = null;
+        progressTimedSince = 0;
         bleProcessing = false;
         BLECommand command;
         for (;;) {
             command = commandQueue.poll();
             if (command != null) {
+                countWrite(command, false);
                 command.getCallbackContext().error("Peripheral Disconnected");
             }
             else {
@@ -792,49 +1665,183 @@ public class Peripheral extends BluetoothGattCallback {
     }
 
     private void callbackCleanup() {
-        synchronized(this) {
-            if (readCallback != null) {
-                readCallback.error(this.asJSONObject("Peripheral Disconnected"));
-                readCallback = null;
-                commandCompleted();
-            }
-            if (writeCallback != null) {
-                writeCallback.error(this.asJSONObject("Peripheral Disconnected"));
-                writeCallback = null;
-                commandCompleted();
-            }
+        if (readCallback != null) {
+            readCallback.error(this.asJSONObject("Peripheral Disconnected"));
+            readCallback = null;
+            commandCompleted();
+        }
+        if (writeCallback != null) {
+            writeCallback.error(this.asJSONObject("Peripheral Disconnected"));
+            writeCallback = null;
+            commandCompleted();
         }
     }
 
     // add a new command to the queue
-    private void queueCommand(BLECommand command) {
+    private void queueCommand(BLECommand command, JSONObject options) {
         LOG.d(TAG,"Queuing Command " + command);
-        commandQueue.add(command);
+
+        if (options != null && options.has("priority")) {
+            try {
+                command.setPriority(BLECommandQueue.parsePriority(options.optString("priority")));
+            } catch (IllegalArgumentException e) {
+                command.getCallbackContext().error(e.getMessage());
+                return;
+            }
+        }
+
+        long timeout = options != null ? options.optLong("timeout", commandTimeout) : commandTimeout;
+        if (timeout > 0) {
+            command.setTimeout(timeout);
+            command.setDeadline(SystemClock.elapsedRealtime() + timeout);
+        }
+        command.setReplace(options != null && options.optBoolean("replace", false));
+        countWrite(command, true);
+        if (!commandQueue.add(command)) {
+            // merged into a queued write that is already counted
+            countWrite(command, false);
+        }
 
         PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
         result.setKeepCallback(true);
         command.getCallbackContext().sendPluginResult(result);
 
-        if (!bleProcessing) {
-            processCommands();
+        handler().post(processCommandsRunnable);
+    }
+
+    // Keeps the value cache from answering reads of a characteristic while a write to it is queued or running
+    private void countWrite(BLECommand command, boolean queued) {
+        if (command.isWrite() || command.getType() == BLECommand.WRITE_STREAM) {
+            countWrite(command.getCharacteristicUUID(), queued);
+        } else if (command.getType() == BLECommand.RELIABLE_WRITE) {
+            for (UUID characteristicUUID : command.getReliableWrite().getCharacteristicUUIDs()) {
+                countWrite(characteristicUUID, queued);
+            }
+        }
+    }
+
+    private void countWrite(UUID characteristicUUID, boolean queued) {
+        if (queued) {
+            valueCache.writeQueued(characteristicUUID);
+        } else {
+            valueCache.writeFinished(characteristicUUID);
         }
     }
 
     // command finished, queue the next command
     private void commandCompleted() {
         LOG.d(TAG,"Processing Complete");
+        handler().removeCallbacks(watchdogRunnable);
+        if (currentCommand != null) {
+            countWrite(currentCommand, false);
+        }
+        if (progressTimedSince > 0) {
+            commandQueue.extendDeadlines(progressTimedSince, SystemClock.elapsedRealtime());
+            progressTimedSince = 0;
+        }
+        currentCommand = null;
         bleProcessing = false;
         processCommands();
     }
 
+    // true if the GATT callback belongs to the running command, callbacks can arrive after the command timed out
+    private boolean isCurrentCommand(int type, BluetoothGattCharacteristic characteristic) {
+        return isCurrentCommand(type) && characteristic.getUuid().equals(currentCommand.getCharacteristicUUID());
+    }
+
+    private boolean isCurrentCommand(int type) {
+        return currentCommand != null && currentCommand.getType() == type;
+    }
+
+    // true for commands that time out when they stop making progress, see restartWatchdog
+    private static boolean isProgressTimed(BLECommand command) {
+        int type = command.getType();
+        return type == BLECommand.WRITE_STREAM || type == BLECommand.READ_MANY || type == BLECommand.RELIABLE_WRITE;
+    }
+
+    // true for commands that don't keep their callback in readCallback or writeCallback while they run
+    private static boolean hasOwnCallback(BLECommand command) {
+        int type = command.getType();
+        return type == BLECommand.WRITE_STREAM || type == BLECommand.READ_MANY || type == BLECommand.RELIABLE_WRITE
+                || type == BLECommand.REQUEST_MTU
+                || type == BLECommand.REQUEST_CONNECTION_PRIORITY || type == BLECommand.SET_PREFERRED_PHY;
+    }
+
+    private void onCommandTimeout() {
+        BLECommand command = currentCommand;
+        if (command == null) {
+            return;
+        }
+
+        LOG.w(TAG, "Command timed out, type=" + command.getType() + " characteristic=" + command.getCharacteristicUUID());
+        readCallback = null;
+        writeCallback = null;
+        streamCharacteristic = null;
+        handler().removeCallbacks(streamRetryRunnable);
+        handler().removeCallbacks(connectionUpdateRunnable);
+        handler().removeCallbacks(phyReadRunnable);
+        if (command.getType() == BLECommand.REGISTER_NOTIFY) {
+            removeSubscriptions(null, null, command.getCallbackContext());
+        }
+        if (command.getType() == BLECommand.RELIABLE_WRITE && gatt != null) {
+            gatt.abortReliableWrite();
+        }
+        command.getCallbackContext().error("Command timed out");
+
+        if (!resetOnTimeout) {
+            commandCompleted();
+            return;
+        }
+        resetGatt();
+    }
+
+    // The stack is stuck, close the GATT and let the app know the peripheral disconnected
+    private void resetGatt() {
+        LOG.w(TAG, "Resetting GATT for " + device.getAddress());
+        state = ConnectionState.DISCONNECTED;
+
+        if (gatt != null) {
+            gatt.disconnect();
+            gatt.close();
+            gatt = null;
+        }
+
+        sendDisconnectMessage();
+        gattIndex = null;
+        valueCache.clear();
+        queueCleanup();
+        callbackCleanup();
+
+        if (autoconnect) {
+            gattConnect();
+        }
+    }
+
     // process the queue
     private void processCommands() {
         LOG.d(TAG,"Processing Commands");
 
         if (bleProcessing) { return; }
 
+        // commands that timed out while they were waiting are dropped without touching the GATT
+        long now = SystemClock.elapsedRealtime();
         BLECommand command = commandQueue.poll();
+        while (command != null && command.isExpired(now)) {
+            LOG.w(TAG, "Dropping expired command, type=" + command.getType() + " characteristic=" + command.getCharacteristicUUID());
+            countWrite(command, false);
+            command.getCallbackContext().error("Command timed out");
+            command = commandQueue.poll();
+        }
+
         if (command != null) {
+            currentCommand = command;
+            if (command.getDeadline() > 0) {
+                handler().postDelayed(watchdogRunnable, command.getDeadline() - now);
+            }
+            if (isProgressTimed(command)) {
+                progressTimedSince = now;
+            }
+
             if (command.getType() == BLECommand.READ) {
                 LOG.d(TAG,"Read " + command.getCharacteristicUUID());
                 bleProcessing = true;
@@ -847,10 +1854,22 @@ public class Peripheral extends BluetoothGattCallback {
                 LOG.d(TAG,"Write No Response " + command.getCharacteristicUUID());
                 bleProcessing = true;
                 writeCharacteristic(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID(), command.getData(), command.getType());
+            } else if (command.getType() == BLECommand.RELIABLE_WRITE) {
+                LOG.d(TAG,"Reliable Write");
+                bleProcessing = true;
+                startReliableWrite();
+            } else if (command.getType() == BLECommand.READ_MANY) {
+                LOG.d(TAG,"Read Many");
+                bleProcessing = true;
+                readNextInBatch();
+            } else if (command.getType() == BLECommand.WRITE_STREAM) {
+                LOG.d(TAG,"Write Stream " + command.getCharacteristicUUID());
+                bleProcessing = true;
+                startStream(command);
             } else if (command.getType() == BLECommand.REGISTER_NOTIFY) {
                 LOG.d(TAG,"Register Notify " + command.getCharacteristicUUID());
                 bleProcessing = true;
-                registerNotifyCallback(command.getCallbackContext(), command.getServiceUUID(), command.getCharacteristicUUID());
+                registerNotifyCallback(command.getCallbackContext(), command.getSubscription());
             } else if (command.getType() == BLECommand.REMOVE_NOTIFY) {
                 LOG.d(TAG,"Remove Notify " + command.getCharacteristicUUID());
                 bleProcessing = true;
@@ -859,6 +1878,18 @@ public class Peripheral extends BluetoothGattCallback {
                 LOG.d(TAG,"Read RSSI");
                 bleProcessing = true;
                 readRSSI(command.getCallbackContext());
+            } else if (command.getType() == BLECommand.REQUEST_MTU) {
+                LOG.d(TAG,"Request MTU " + command.getValue());
+                bleProcessing = true;
+                requestMtu(command.getCallbackContext(), command.getValue());
+            } else if (command.getType() == BLECommand.REQUEST_CONNECTION_PRIORITY) {
+                LOG.d(TAG,"Request Connection Priority " + command.getValue());
+                bleProcessing = true;
+                requestConnectionPriority(command.getCallbackContext(), command.getValue());
+            } else if (command.getType() == BLECommand.SET_PREFERRED_PHY) {
+                LOG.d(TAG,"Set Preferred PHY " + command.getValue());
+                bleProcessing = true;
+                setPreferredPhy(command.getCallbackContext(), command.getValue(), command.getOption());
             } else {
                 // this shouldn't happen
                 throw new RuntimeException("Unexpected BLE Command type " + command.getType());
@@ -869,12 +1900,69 @@ public class Peripheral extends BluetoothGattCallback {
 
     }
 
-    private String generateHashKey(BluetoothGattCharacteristic characteristic) {
-        return generateHashKey(characteristic.getService().getUuid(), characteristic);
+    private NotificationSubscription findSubscription(BluetoothGattCharacteristic characteristic) {
+        NotificationSubscription subscription = subscriptionsById.get(characteristic.getInstanceId());
+        if (subscription != null && subscription.matches(characteristic)) {
+            return subscription;
+        }
+
+        // instance ids collide before Android 5.0
+        NotificationSubscription[] all = subscriptions;
+        for (int i = 0; i < all.length; i++) {
+            if (all[i].matches(characteristic)) {
+                return all[i];
+            }
+        }
+        return null;
+    }
+
+    private NotificationSubscription findSubscription(UUID serviceUUID, UUID characteristicUUID) {
+        for (NotificationSubscription subscription : subscriptions) {
+            if (subscription.serviceUUID.equals(serviceUUID) && subscription.characteristicUUID.equals(characteristicUUID)) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void addSubscription(NotificationSubscription subscription) {
+        List<NotificationSubscription> updated = new ArrayList<NotificationSubscription>();
+        for (NotificationSubscription existing : subscriptions) {
+            if (existing.isFor(subscription.serviceUUID, subscription.characteristicUUID, subscription.instanceId)) {
+                existing.close();
+            } else {
+                updated.add(existing);
+            }
+        }
+        updated.add(subscription);
+        setSubscriptions(updated);
+    }
+
+    // removes the subscriptions for the characteristic, or the subscriptions with the callback
+    private synchronized void removeSubscriptions(UUID serviceUUID, BluetoothGattCharacteristic characteristic, CallbackContext callback) {
+        List<NotificationSubscription> updated = new ArrayList<NotificationSubscription>();
+        for (NotificationSubscription existing : subscriptions) {
+            boolean remove = characteristic != null
+                    ? existing.isFor(serviceUUID, characteristic.getUuid(), characteristic.getInstanceId())
+                    : existing.callback == callback;
+            if (remove) {
+                existing.close();
+            } else {
+                updated.add(existing);
+            }
+        }
+        setSubscriptions(updated);
     }
 
-    private String generateHashKey(UUID serviceUUID, BluetoothGattCharacteristic characteristic) {
-        return String.valueOf(serviceUUID) + "|" + characteristic.getUuid() + "|" + characteristic.getInstanceId();
+    private void setSubscriptions(List<NotificationSubscription> updated) {
+        SparseArray<NotificationSubscription> byId = new SparseArray<NotificationSubscription>();
+        for (NotificationSubscription subscription : updated) {
+            if (byId.indexOfKey(subscription.instanceId) < 0) {
+                byId.put(subscription.instanceId, subscription);
+            }
+        }
+        subscriptionsById = byId;
+        subscriptions = updated.toArray(new NotificationSubscription[updated.size()]);
     }
 
 }
\ No newline at end of file
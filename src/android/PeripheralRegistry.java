@@ -0,0 +1,455 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.apache.cordova.LOG;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The peripherals known to the plugin, keyed by MAC address.
+ *
+ * The registry is used from the Bluetooth binder threads while scanning, from the Cordova thread and from
+ * BLEService. MAC addresses are packed into a long and the peripherals are spread over independently locked
+ * stripes, so lookups don't hash strings and threads rarely wait for each other. Iteration is in insertion order.
+ *
+ * The registry can be bounded by size and by the time since a peripheral was last seen. Peripherals
+ * that are connected, connecting or waiting to auto-connect are never evicted.
+ */
+class PeripheralRegistry {
+
+    private static final String TAG = "PeripheralRegistry";
+
+    static final long INVALID_ADDRESS = -1;
+
+    private static final int STRIPES = 16; // power of 2
+
+    // when the registry is full, evict down to this fraction of the maximum so the next scan results don't evict again
+    private static final double LOW_WATER_MARK = 0.9;
+    private static final long MIN_SWEEP_INTERVAL = 1000;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong insertions = new AtomicLong();
+
+    private volatile int maxSize = 0; // unbounded
+    private volatile long timeToLive = 0; // never expire
+    private final AtomicLong evictedForSize = new AtomicLong();
+    private final AtomicLong evictedForTimeout = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+    private final Runnable sweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sweepScheduled.set(false);
+            evictExpired(SystemClock.elapsedRealtime());
+            scheduleSweep();
+        }
+    };
+
+    PeripheralRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Packs a MAC address like "01:23:45:67:89:AB" into the low 48 bits of a long, without allocating.
+     * Returns INVALID_ADDRESS if the string isn't a MAC address.
+     */
+    static long addressToLong(String address) {
+        if (address == null || address.length() != 17) {
+            return INVALID_ADDRESS;
+        }
+
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return INVALID_ADDRESS;
+                }
+                continue;
+            }
+
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return INVALID_ADDRESS;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    Peripheral get(String address) {
+        return get(addressToLong(address));
+    }
+
+    Peripheral get(long address) {
+        if (address == INVALID_ADDRESS) {
+            return null;
+        }
+        return stripeFor(address).get(address);
+    }
+
+    boolean containsKey(String address) {
+        return get(address) != null;
+    }
+
+    void put(String address, Peripheral peripheral) {
+        long key = addressToLong(address);
+        if (key == INVALID_ADDRESS) {
+            LOG.w(TAG, "Not adding peripheral with invalid address " + address);
+            return;
+        }
+
+        Peripheral previous = stripeFor(key).put(key, peripheral, insertions.incrementAndGet());
+        if (previous == null) {
+            onAdded();
+        } else if (previous != peripheral) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Adds the peripheral unless there already is one for the address
+     * @return the peripheral that was already in the registry, or null if the peripheral was added
+     */
+    Peripheral putIfAbsent(long address, Peripheral peripheral) {
+        if (address == INVALID_ADDRESS) {
+            throw new IllegalArgumentException("Invalid address");
+        }
+        Peripheral existing = stripeFor(address).putIfAbsent(address, peripheral, insertions.incrementAndGet());
+        if (existing == null) {
+            onAdded();
+        }
+        return existing;
+    }
+
+    // snapshot in insertion order
+    List<Peripheral> values() {
+        List<Entry> entries = entries();
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0);
+            }
+        });
+
+        List<Peripheral> values = new ArrayList<Peripheral>(entries.size());
+        for (Entry entry : entries) {
+            values.add(entry.peripheral);
+        }
+        return values;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    void removeDisconnected() {
+        for (Entry entry : entries()) {
+            Peripheral peripheral = entry.peripheral;
+            boolean connecting = peripheral.isConnecting();
+            if (connecting) {
+                LOG.d(TAG, "Not removing connecting device: " + peripheral.getDevice().getAddress());
+            }
+            if (!peripheral.isConnected() && !connecting) {
+                remove(entry.address, peripheral);
+            }
+        }
+    }
+
+    /**
+     * @param maxSize maximum number of peripherals, 0 for no limit
+     * @param timeToLive milliseconds since a peripheral was last seen before it is removed, 0 to keep peripherals forever
+     */
+    void configure(int maxSize, long timeToLive) {
+        this.maxSize = Math.max(0, maxSize);
+        this.timeToLive = Math.max(0, timeToLive);
+
+        if (this.maxSize > 0 && size.get() > this.maxSize) {
+            evictLeastRecentlySeen(this.maxSize);
+        }
+
+        handler.removeCallbacks(sweepRunnable);
+        sweepScheduled.set(false);
+        scheduleSweep();
+    }
+
+    JSONObject getStats() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("peripherals", size.get());
+            json.put("maxPeripherals", maxSize);
+            json.put("peripheralTimeout", timeToLive);
+            json.put("evictedForSize", evictedForSize.get());
+            json.put("evictedForTimeout", evictedForTimeout.get());
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private Stripe stripeFor(long address) {
+        return stripes[(int) (mix(address) >>> 60) & (STRIPES - 1)];
+    }
+
+    private static long mix(long address) {
+        return address * 0x9E3779B97F4A7C15L;
+    }
+
+    private void onAdded() {
+        int count = size.incrementAndGet();
+        int max = maxSize;
+        if (max > 0 && count > max) {
+            evictLeastRecentlySeen((int) (max * LOW_WATER_MARK));
+        }
+        scheduleSweep();
+    }
+
+    private boolean remove(long address, Peripheral expected) {
+        if (stripeFor(address).remove(address, expected)) {
+            size.decrementAndGet();
+            expected.release();
+            return true;
+        }
+        return false;
+    }
+
+    private List<Entry> entries() {
+        List<Entry> entries = new ArrayList<Entry>(size.get());
+        for (Stripe stripe : stripes) {
+            stripe.collect(entries);
+        }
+        return entries;
+    }
+
+    private void scheduleSweep() {
+        if (timeToLive > 0 && size.get() > 0 && sweepScheduled.compareAndSet(false, true)) {
+            handler.postDelayed(sweepRunnable, Math.max(MIN_SWEEP_INTERVAL, timeToLive / 4));
+        }
+    }
+
+    private void evictExpired(long now) {
+        long ttl = timeToLive;
+        if (ttl <= 0) {
+            return;
+        }
+
+        for (Entry entry : entries()) {
+            Peripheral peripheral = entry.peripheral;
+            if (isEvictable(peripheral) && now - peripheral.getLastSeen() > ttl && remove(entry.address, peripheral)) {
+                evictedForTimeout.incrementAndGet();
+            }
+        }
+    }
+
+    private void evictLeastRecentlySeen(int targetSize) {
+        // one eviction pass at a time, the others can carry on adding peripherals
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            List<Entry> candidates = new ArrayList<Entry>();
+            for (Entry entry : entries()) {
+                if (isEvictable(entry.peripheral)) {
+                    entry.lastSeen = entry.peripheral.getLastSeen();
+                    candidates.add(entry);
+                }
+            }
+
+            Collections.sort(candidates, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return a.lastSeen < b.lastSeen ? -1 : (a.lastSeen > b.lastSeen ? 1 : 0);
+                }
+            });
+
+            for (int i = 0; i < candidates.size() && size.get() > targetSize; i++) {
+                Entry entry = candidates.get(i);
+                if (remove(entry.address, entry.peripheral)) {
+                    evictedForSize.incrementAndGet();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static boolean isEvictable(Peripheral peripheral) {
+        return !peripheral.isConnected() && !peripheral.isConnecting() && peripheral.gatt == null && !peripheral.isRecording();
+    }
+
+    private static class Entry {
+        final long address;
+        final Peripheral peripheral;
+        final long sequence;
+        long lastSeen;
+
+        Entry(long address, Peripheral peripheral, long sequence) {
+            this.address = address;
+            this.peripheral = peripheral;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Open addressing hash table with linear probing, keyed by the packed MAC address.
+     * The sequence number of each entry records insertion order.
+     */
+    private static class Stripe {
+
+        private static final long EMPTY = -1;
+        private static final int INITIAL_CAPACITY = 16; // power of 2
+
+        private long[] keys = newKeys(INITIAL_CAPACITY);
+        private Peripheral[] values = new Peripheral[INITIAL_CAPACITY];
+        private long[] sequences = new long[INITIAL_CAPACITY];
+        private int count = 0;
+
+        synchronized Peripheral get(long key) {
+            int index = indexOf(key);
+            return index < 0 ? null : values[index];
+        }
+
+        // returns the previous value
+        synchronized Peripheral put(long key, Peripheral value, long sequence) {
+            int index = indexOf(key);
+            if (index >= 0) {
+                Peripheral previous = values[index];
+                values[index] = value;
+                return previous;
+            }
+            insert(key, value, sequence);
+            return null;
+        }
+
+        synchronized Peripheral putIfAbsent(long key, Peripheral value, long sequence) {
+            int index = indexOf(key);
+            if (index >= 0) {
+                return values[index];
+            }
+            insert(key, value, sequence);
+            return null;
+        }
+
+        synchronized boolean remove(long key, Peripheral expected) {
+            int index = indexOf(key);
+            if (index < 0 || values[index] != expected) {
+                return false;
+            }
+            removeAt(index);
+            return true;
+        }
+
+        synchronized void collect(List<Entry> entries) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    entries.add(new Entry(keys[i], values[i], sequences[i]));
+                }
+            }
+        }
+
+        private int home(long key, int mask) {
+            long hash = mix(key);
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        private int indexOf(long key) {
+            int mask = keys.length - 1;
+            for (int i = home(key, mask); ; i = (i + 1) & mask) {
+                long k = keys[i];
+                if (k == key) {
+                    return i;
+                }
+                if (k == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        private void insert(long key, Peripheral value, long sequence) {
+            if ((count + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int i = home(key, mask);
+            while (keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            sequences[i] = sequence;
+            count++;
+        }
+
+        // backward shift deletion keeps the probe sequences intact without tombstones
+        private void removeAt(int index) {
+            int mask = keys.length - 1;
+            int hole = index;
+            for (int i = (hole + 1) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+                int home = home(keys[i], mask);
+                boolean canMove = hole <= i ? (home <= hole || home > i) : (home <= hole && home > i);
+                if (canMove) {
+                    keys[hole] = keys[i];
+                    values[hole] = values[i];
+                    sequences[hole] = sequences[i];
+                    hole = i;
+                }
+            }
+            keys[hole] = EMPTY;
+            values[hole] = null;
+            count--;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Peripheral[] oldValues = values;
+            long[] oldSequences = sequences;
+
+            keys = newKeys(capacity);
+            values = new Peripheral[capacity];
+            sequences = new long[capacity];
+            count = 0;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    insert(oldKeys[i], oldValues[i], oldSequences[i]);
+                }
+            }
+        }
+
+        private static long[] newKeys(int capacity) {
+            long[] keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The writes of a reliableWrite transaction, see Peripheral.queueReliableWrite.
+ *
+ * Android sends each write as a prepared write and the peripheral echoes the value back. The echo is compared
+ * with the value that was sent, a mismatch or a failed write aborts the whole transaction. The peripheral only
+ * applies the values when every write was prepared and the transaction is executed.
+ */
+class ReliableWrite {
+
+    private final List<UUID> serviceUUIDs;
+    private final List<UUID> characteristicUUIDs;
+    private final List<byte[]> values;
+
+    // the write waiting for its echo
+    private int index = 0;
+    private boolean executing = false;
+
+    ReliableWrite(List<UUID> serviceUUIDs, List<UUID> characteristicUUIDs, List<byte[]> values) {
+        this.serviceUUIDs = serviceUUIDs;
+        this.characteristicUUIDs = characteristicUUIDs;
+        this.values = values;
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    boolean isPrepared() {
+        return index >= values.size();
+    }
+
+    UUID getServiceUUID() {
+        return serviceUUIDs.get(index);
+    }
+
+    UUID getCharacteristicUUID() {
+        return characteristicUUIDs.get(index);
+    }
+
+    // every characteristic the reliable write changes
+    List<UUID> getCharacteristicUUIDs() {
+        return characteristicUUIDs;
+    }
+
+    byte[] getValue() {
+        return values.get(index);
+    }
+
+    // true if the peripheral echoed the value of the current write
+    boolean onEcho(byte[] echo) {
+        if (!Arrays.equals(values.get(index), echo)) {
+            return false;
+        }
+        index++;
+        return true;
+    }
+
+    boolean isExecuting() {
+        return executing;
+    }
+
+    void setExecuting() {
+        executing = true;
+    }
+}
@@ -0,0 +1,220 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Packs scan results into compact binary frames that are sent to JavaScript as an ArrayBuffer.
+ * The decoder is decodeScanFrame in www/ble.js, keep them in sync.
+ *
+ * All values are little endian.
+ *
+ *   frame header (12 bytes)
+ *     uint8   version
+ *     uint8   flags, FLAG_RESET means the device ids were reset and start again at 0. All records in the
+ *             frame use the new ids, the records before the reset were sent in an earlier frame.
+ *     uint16  number of records
+ *     float64 scan start time, milliseconds since the epoch
+ *
+ *   record header (8 bytes)
+ *     uint8   type
+ *     uint16  device id, assigned in the order the devices are first seen
+ *     int8    rssi
+ *     uint32  milliseconds since the scan started
+ *
+ *   RECORD_NEW adds the MAC address and advertising data
+ *     uint8[6] MAC address, most significant byte first
+ *     uint16   advertising data length
+ *     uint8[]  advertising data
+ *
+ *   RECORD_ADVERTISING is a known device with new advertising data
+ *     uint16   advertising data length
+ *     uint8[]  advertising data
+ *
+ *   RECORD_RSSI is a known device with the same advertising data as the last record, only the RSSI is sent
+ */
+class ScanFrameEncoder {
+
+    static final int VERSION = 1;
+    static final int FLAG_RESET = 0x01;
+
+    static final int RECORD_NEW = 0;
+    static final int RECORD_ADVERTISING = 1;
+    static final int RECORD_RSSI = 2;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_RECORDS = 0xFFFF;
+    private static final int MAX_DEVICE_IDS = 0xFFFF;
+
+    // frames are flushed early once they reach this size
+    static final int MAX_FRAME_SIZE = 32 * 1024;
+
+    private static class DeviceState {
+        int id;
+        byte[] advertising;
+    }
+
+    // weak keys so peripherals evicted from the registry don't keep their state alive
+    private final Map<Peripheral, DeviceState> devices = new WeakHashMap<Peripheral, DeviceState>();
+    private int nextId = 0;
+    private boolean reset = false;
+
+    private final long scanStartElapsed;
+    private final double scanStartTime;
+
+    private byte[] buffer = new byte[1024];
+    private int position = HEADER_SIZE;
+    private int count = 0;
+
+    ScanFrameEncoder() {
+        scanStartElapsed = SystemClock.elapsedRealtime();
+        scanStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * True if adding the peripheral resets the device ids while the current frame has records with the old ids.
+     * Flush the frame before adding the peripheral.
+     */
+    synchronized boolean needsFlushBeforeReset(Peripheral peripheral) {
+        return count > 0 && nextId > MAX_DEVICE_IDS && !devices.containsKey(peripheral);
+    }
+
+    /**
+     * Adds a scan result to the current frame, see needsFlushBeforeReset
+     * @param elapsedMillis SystemClock.elapsedRealtime() when the advertisement was received
+     * @return true when the frame is full and should be flushed
+     */
+    synchronized boolean add(Peripheral peripheral, int rssi, byte[] scanRecord, long elapsedMillis) {
+        int length = significantLength(scanRecord);
+        DeviceState state = devices.get(peripheral);
+
+        int type;
+        if (state == null) {
+            if (nextId > MAX_DEVICE_IDS) {
+                devices.clear();
+                nextId = 0;
+                reset = true;
+            }
+            state = new DeviceState();
+            state.id = nextId++;
+            devices.put(peripheral, state);
+            type = RECORD_NEW;
+        } else if (sameAdvertising(state.advertising, scanRecord, length)) {
+            type = RECORD_RSSI;
+        } else {
+            type = RECORD_ADVERTISING;
+        }
+
+        ensureCapacity(8 + 6 + 2 + length);
+
+        buffer[position++] = (byte) type;
+        putUint16(state.id);
+        buffer[position++] = (byte) Math.max(-128, Math.min(127, rssi));
+        putUint32(Math.max(0, elapsedMillis - scanStartElapsed));
+
+        if (type == RECORD_NEW) {
+            long address = PeripheralRegistry.addressToLong(peripheral.getDevice().getAddress());
+            for (int shift = 40; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (address >>> shift);
+            }
+        }
+
+        if (type != RECORD_RSSI) {
+            putUint16(length);
+            System.arraycopy(scanRecord, 0, buffer, position, length);
+            position += length;
+            state.advertising = Arrays.copyOf(scanRecord, length);
+        }
+
+        count++;
+        return count >= MAX_RECORDS || position >= MAX_FRAME_SIZE;
+    }
+
+    synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return the current frame, or null if there are no records
+     */
+    synchronized byte[] flush() {
+        if (count == 0) {
+            return null;
+        }
+
+        int end = position;
+        position = 0;
+        buffer[position++] = (byte) VERSION;
+        buffer[position++] = (byte) (reset ? FLAG_RESET : 0);
+        putUint16(count);
+        long time = Double.doubleToLongBits(scanStartTime);
+        for (int shift = 0; shift < 64; shift += 8) {
+            buffer[position++] = (byte) (time >>> shift);
+        }
+
+        byte[] frame = Arrays.copyOf(buffer, end);
+
+        position = HEADER_SIZE;
+        count = 0;
+        reset = false;
+        return frame;
+    }
+
+    // The legacy scan record is zero padded to 62 bytes, only send the AD structures
+    private static int significantLength(byte[] scanRecord) {
+        int index = 0;
+        while (index < scanRecord.length) {
+            int length = scanRecord[index] & 0xFF;
+            if (length == 0 || index + 1 + length > scanRecord.length) {
+                break;
+            }
+            index += 1 + length;
+        }
+        return index;
+    }
+
+    private static boolean sameAdvertising(byte[] previous, byte[] scanRecord, int length) {
+        if (previous == null || previous.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (previous[i] != scanRecord[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (position + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + additional));
+        }
+    }
+
+    private void putUint16(int value) {
+        buffer[position++] = (byte) value;
+        buffer[position++] = (byte) (value >>> 8);
+    }
+
+    private void putUint32(long value) {
+        buffer[position++] = (byte) value;
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,238 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.apache.cordova.LOG;
+
+/**
+ * Decides when the radio scans and in which scan mode.
+ *
+ * With a scan window and interval, the scan runs for the window at the start of every interval and the radio is
+ * off for the rest of it. A boost switches to low latency for a while after a new device is seen, so it is
+ * discovered quickly, and then goes back to the configured mode.
+ *
+ * Android blocks apps that start scans more than 5 times in 30 seconds, starts that would go over the limit are
+ * postponed until they are allowed.
+ */
+class ScanScheduler {
+
+    private static final String TAG = "ScanScheduler";
+
+    // the same values as ScanSettings.SCAN_MODE_*
+    static final int SCAN_MODE_OPPORTUNISTIC = -1;
+    static final int SCAN_MODE_LOW_POWER = 0;
+    static final int SCAN_MODE_BALANCED = 1;
+    static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    private static final int MAX_STARTS = 5;
+    private static final long START_LIMIT_MILLIS = 30000;
+
+    interface Scanner {
+        void startScan(int scanMode);
+        void stopScan();
+    }
+
+    private final Handler handler;
+    private final Scanner scanner;
+
+    // configuration
+    private int scanMode;
+    private long scanWindow;
+    private long scanInterval;
+    private long boostDuration;
+
+    private boolean scheduled = false;
+    private boolean scanning = false;
+    private boolean boosting = false;
+    private int currentMode;
+    private long windowStart;
+
+    // when the last scans were started, oldest first
+    private final long[] starts = new long[MAX_STARTS];
+    private int startCount = 0;
+
+    private Runnable startWindow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                windowStart = SystemClock.elapsedRealtime();
+                startScan();
+                if (isDutyCycled()) {
+                    handler.postDelayed(endWindow, scanWindow);
+                }
+            }
+        }
+    };
+
+    private Runnable endWindow = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                handler.removeCallbacks(deferredStart);
+                stopScan();
+                long nextWindow = windowStart + scanInterval - SystemClock.elapsedRealtime();
+                handler.postDelayed(startWindow, Math.max(0, nextWindow));
+            }
+        }
+    };
+
+    private Runnable restart = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                restartScan();
+            }
+        }
+    };
+
+    private Runnable deferredStart = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                startScan();
+            }
+        }
+    };
+
+    private Runnable endBoost = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                LOG.d(TAG, "Scan boost finished");
+                boosting = false;
+                restartScan();
+            }
+        }
+    };
+
+    ScanScheduler(Handler handler, Scanner scanner) {
+        this.handler = handler;
+        this.scanner = scanner;
+    }
+
+    /**
+     * Starts scanning, replacing the previous schedule
+     * @param scanWindow milliseconds to scan every scanInterval, 0 to scan all the time
+     * @param boostDuration milliseconds to scan in low latency mode after a new device is seen, 0 for no boost
+     */
+    synchronized void schedule(int scanMode, long scanWindow, long scanInterval, long boostDuration) {
+        cancel();
+
+        this.scanMode = scanMode;
+        this.scanWindow = scanWindow;
+        this.scanInterval = scanInterval;
+        this.boostDuration = boostDuration;
+        this.scheduled = true;
+
+        startWindow.run();
+    }
+
+    /**
+     * Stops scanning
+     */
+    synchronized void cancel() {
+        handler.removeCallbacks(startWindow);
+        handler.removeCallbacks(endWindow);
+        handler.removeCallbacks(restart);
+        handler.removeCallbacks(deferredStart);
+        handler.removeCallbacks(endBoost);
+        stopScan();
+        scheduled = false;
+        boosting = false;
+    }
+
+    synchronized void onNewDevice() {
+        if (!scheduled || boostDuration <= 0 || scanMode == SCAN_MODE_LOW_LATENCY) {
+            return;
+        }
+
+        handler.removeCallbacks(endBoost);
+        handler.postDelayed(endBoost, boostDuration);
+
+        if (!boosting) {
+            LOG.d(TAG, "New device, boosting scan to low latency");
+            boosting = true;
+            restartScan();
+        }
+    }
+
+    private boolean isDutyCycled() {
+        return scanWindow > 0 && scanInterval > scanWindow;
+    }
+
+    private int desiredMode() {
+        return boosting ? SCAN_MODE_LOW_LATENCY : scanMode;
+    }
+
+    // Switches the mode of a running scan
+    private void restartScan() {
+        handler.removeCallbacks(restart);
+        if (!scanning || currentMode == desiredMode()) {
+            return; // the mode is picked up by the next window
+        }
+
+        long wait = millisUntilStartAllowed();
+        if (wait > 0) {
+            handler.postDelayed(restart, wait); // keep scanning in the old mode until then
+            return;
+        }
+
+        stopScan();
+        startScan();
+    }
+
+    private void startScan() {
+        if (scanning) {
+            return;
+        }
+
+        long wait = millisUntilStartAllowed();
+        if (wait > 0) {
+            LOG.w(TAG, "Too many scans started, waiting " + wait + " ms");
+            handler.removeCallbacks(deferredStart);
+            handler.postDelayed(deferredStart, wait);
+            return;
+        }
+
+        recordStart(SystemClock.elapsedRealtime());
+        currentMode = desiredMode();
+        scanning = true;
+        scanner.startScan(currentMode);
+    }
+
+    private void stopScan() {
+        if (scanning) {
+            scanning = false;
+            scanner.stopScan();
+        }
+    }
+
+    private long millisUntilStartAllowed() {
+        if (startCount < MAX_STARTS) {
+            return 0;
+        }
+        long oldest = starts[0];
+        return Math.max(0, oldest + START_LIMIT_MILLIS - SystemClock.elapsedRealtime());
+    }
+
+    private void recordStart(long now) {
+        if (startCount == MAX_STARTS) {
+            System.arraycopy(starts, 1, starts, 0, MAX_STARTS - 1);
+            startCount--;
+        }
+        starts[startCount++] = now;
+    }
+}
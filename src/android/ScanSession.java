@@ -0,0 +1,347 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.annotation.TargetApi;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+
+/**
+ * A subscriber to the shared scan. Each session has its own filters, duplicate policy, batching and callback.
+ * BLECentralPlugin runs one hardware scan for the union of all sessions and hands every result to the
+ * sessions that match it.
+ */
+class ScanSession {
+
+    // scan, startScan and startScanWithOptions share this session, starting one replaces the previous scan
+    static final String DEFAULT_ID = "default";
+
+    // binary scans are packed into frames and flushed after reportDelay, or this many milliseconds
+    private static final long BINARY_FRAME_DELAY = 100;
+
+    final String id;
+    final UUID[] serviceUUIDs;
+    // serviceUUIDs as AdvertisingData compares them, converted once so matching doesn't allocate
+    private final String[] serviceUUIDStrings;
+    final List<ScanFilter> filters;
+
+    // options
+    final boolean reportDuplicates;
+    final long reportDelay;
+    final long duplicateInterval;
+    final int duplicateRssiDelta;
+    final boolean duplicateOnDataChange;
+    final boolean parseAdvertising;
+    final boolean binary;
+    long duration;
+
+    // scheduling, see ScanScheduler
+    final int scanMode;
+    final boolean hasScanMode;
+    final long scanWindow;
+    final long scanInterval;
+    final long boostDuration;
+
+    final CallbackContext callback;
+    private final Handler handler;
+
+    // what was last sent for each peripheral, weak keys so forgotten peripherals are dropped here too
+    private final Map<Peripheral, Report> reports = new WeakHashMap<Peripheral, Report>();
+
+    final ScanStats stats = new ScanStats();
+
+    private JSONArray pendingBatch;
+    private ScanFrameEncoder frameEncoder;
+
+    // when the batched results were received, for the delivery age
+    private long[] pendingTimes = new long[16];
+    private int pendingCount = 0;
+    private boolean stopped = false;
+
+    private Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static class Report {
+        long millis;
+        int rssi;
+        byte[] data;
+    }
+
+    /**
+     * @param serviceUUIDs null or empty for any service
+     * @param filters null for no filters
+     * @param options null for the defaults
+     */
+    ScanSession(String id, CallbackContext callback, Handler handler, UUID[] serviceUUIDs, List<ScanFilter> filters, JSONObject options) {
+        if (options == null) {
+            options = new JSONObject();
+        }
+
+        this.id = id;
+        this.callback = callback;
+        this.handler = handler;
+        this.serviceUUIDs = serviceUUIDs != null && serviceUUIDs.length > 0 ? serviceUUIDs : null;
+        if (this.serviceUUIDs != null) {
+            serviceUUIDStrings = new String[this.serviceUUIDs.length];
+            for (int i = 0; i < serviceUUIDStrings.length; i++) {
+                serviceUUIDStrings[i] = UUIDHelper.uuidToString(this.serviceUUIDs[i]);
+            }
+        } else {
+            serviceUUIDStrings = null;
+        }
+        this.filters = filters;
+
+        this.reportDuplicates = options.optBoolean("reportDuplicates", false);
+        this.reportDelay = options.optLong("reportDelay", 0);
+        this.duplicateInterval = options.optLong("duplicateInterval", 0);
+        this.duplicateRssiDelta = options.optInt("duplicateRssiDelta", 0);
+        this.duplicateOnDataChange = options.optBoolean("duplicateOnDataChange", false);
+        this.parseAdvertising = options.optBoolean("parseAdvertising", false);
+        this.binary = options.optBoolean("binary", false);
+        this.duration = options.optLong("duration", 0);
+
+        String mode = options.optString("scanMode", "");
+        this.hasScanMode = mode.length() > 0;
+        this.scanMode = hasScanMode ? parseScanMode(mode) : defaultScanMode();
+        this.scanWindow = options.optLong("scanWindow", 0);
+        this.scanInterval = options.optLong("scanInterval", 0);
+        this.boostDuration = options.optLong("boostDuration", 0);
+
+        if (binary) {
+            frameEncoder = new ScanFrameEncoder();
+        }
+    }
+
+    private static int parseScanMode(String mode) {
+        if (mode.equals("lowPower")) {
+            return ScanScheduler.SCAN_MODE_LOW_POWER;
+        } else if (mode.equals("balanced")) {
+            return ScanScheduler.SCAN_MODE_BALANCED;
+        } else if (mode.equals("lowLatency")) {
+            return ScanScheduler.SCAN_MODE_LOW_LATENCY;
+        } else if (mode.equals("opportunistic")) {
+            return ScanScheduler.SCAN_MODE_OPPORTUNISTIC;
+        }
+        throw new IllegalArgumentException("Unknown scanMode " + mode);
+    }
+
+    // batched scans are for saving power, other scans want results as soon as possible
+    private int defaultScanMode() {
+        return reportDelay > 0 ? ScanScheduler.SCAN_MODE_LOW_POWER : ScanScheduler.SCAN_MODE_LOW_LATENCY;
+    }
+
+    boolean isDutyCycled() {
+        return scanWindow > 0 && scanInterval > scanWindow;
+    }
+
+    boolean wantsAllDevices() {
+        return serviceUUIDs == null && filters == null;
+    }
+
+    /**
+     * True if the result belongs to this session. Only needed when the hardware scan is shared with other sessions.
+     * @param result the ScanResult on Android 5.0+, null for the legacy scan
+     */
+    boolean matches(Peripheral peripheral, ScanResult result) {
+        if (wantsAllDevices()) {
+            return true;
+        }
+
+        if (serviceUUIDStrings != null) {
+            AdvertisingData advertisement = peripheral.getParsedAdvertising();
+            if (advertisement != null) {
+                for (String uuid : serviceUUIDStrings) {
+                    if (advertisement.hasServiceUUID(uuid)) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        return filters != null && result != null && matchesFilters(result);
+    }
+
+    @TargetApi(21)
+    private boolean matchesFilters(ScanResult result) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        for (ScanFilter filter : filters) {
+            if (filter.matches(result)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reports the peripheral unless it is a duplicate this session doesn't want
+     * @param elapsedMillis SystemClock.elapsedRealtime() when the advertisement was received
+     */
+    synchronized void onScanResult(Peripheral peripheral, int rssi, byte[] scanRecord, long elapsedMillis) {
+        if (stopped) {
+            return;
+        }
+        stats.onMatched();
+
+        long now = SystemClock.elapsedRealtime();
+        Report report = reports.get(peripheral);
+
+        if (report == null) {
+            report = new Report();
+            reports.put(peripheral, report);
+        } else if (!reportDuplicates || !shouldReportDuplicate(report, rssi, scanRecord, now)) {
+            stats.onDuplicateSuppressed();
+            return;
+        }
+
+        report.millis = now;
+        report.rssi = rssi;
+        report.data = scanRecord;
+        stats.onReported();
+
+        if (frameEncoder != null) {
+            if (frameEncoder.needsFlushBeforeReset(peripheral)) {
+                flush();
+            }
+            if (frameEncoder.isEmpty()) {
+                handler.postDelayed(flushRunnable, reportDelay > 0 ? reportDelay : BINARY_FRAME_DELAY);
+            }
+            addPendingTime(elapsedMillis);
+            if (frameEncoder.add(peripheral, rssi, scanRecord, elapsedMillis)) {
+                flush();
+            }
+        } else if (reportDelay > 0) {
+            if (pendingBatch == null) {
+                pendingBatch = new JSONArray();
+                handler.postDelayed(flushRunnable, reportDelay);
+            }
+            addPendingTime(elapsedMillis);
+            pendingBatch.put(scanResultJSON(peripheral));
+        } else {
+            JSONObject json = scanResultJSON(peripheral);
+            stats.deliveryAgeMillis.record(SystemClock.elapsedRealtime() - elapsedMillis);
+            send(new PluginResult(PluginResult.Status.OK, json));
+        }
+    }
+
+    private void addPendingTime(long elapsedMillis) {
+        if (pendingCount == pendingTimes.length) {
+            pendingTimes = Arrays.copyOf(pendingTimes, pendingCount * 2);
+        }
+        pendingTimes[pendingCount++] = elapsedMillis;
+    }
+
+    private void recordDeliveryAges() {
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < pendingCount; i++) {
+            stats.deliveryAgeMillis.record(now - pendingTimes[i]);
+        }
+        pendingCount = 0;
+    }
+
+    // Duplicates are gated here, before any JSON is built for them.
+    // The interval always applies, the RSSI and data conditions are alternatives to each other.
+    private boolean shouldReportDuplicate(Report report, int rssi, byte[] scanRecord, long now) {
+        if (duplicateInterval > 0 && now - report.millis < duplicateInterval) {
+            return false;
+        }
+
+        if (duplicateRssiDelta > 0 || duplicateOnDataChange) {
+            boolean rssiChanged = duplicateRssiDelta > 0 && Math.abs(rssi - report.rssi) > duplicateRssiDelta;
+            boolean dataChanged = duplicateOnDataChange && !Arrays.equals(scanRecord, report.data);
+            return rssiChanged || dataChanged;
+        }
+
+        return true;
+    }
+
+    private JSONObject scanResultJSON(Peripheral peripheral) {
+        long start = System.nanoTime();
+        JSONObject json = peripheral.asJSONObject();
+        if (parseAdvertising) {
+            AdvertisingData advertisement = peripheral.getParsedAdvertising();
+            if (advertisement != null) {
+                try {
+                    json.put("advertisement", advertisement.asJSONObject());
+                } catch (JSONException e) { // this shouldn't happen
+                    e.printStackTrace();
+                }
+            }
+        }
+        stats.jsonMicros.record((System.nanoTime() - start) / 1000);
+        return json;
+    }
+
+    /**
+     * Sends the batched results now
+     */
+    synchronized void flush() {
+        handler.removeCallbacks(flushRunnable);
+        recordDeliveryAges();
+
+        if (frameEncoder != null) {
+            byte[] frame = frameEncoder.flush();
+            if (frame != null) {
+                send(new PluginResult(PluginResult.Status.OK, frame));
+            }
+        }
+
+        if (pendingBatch != null) {
+            JSONArray batch = pendingBatch;
+            pendingBatch = null;
+            if (batch.length() > 0) {
+                send(new PluginResult(PluginResult.Status.OK, batch));
+            }
+        }
+    }
+
+    /**
+     * Sends anything that is batched, nothing is sent after this
+     */
+    synchronized void stop() {
+        flush();
+        stopped = true;
+    }
+
+    synchronized void error(String message) {
+        handler.removeCallbacks(flushRunnable);
+        stopped = true;
+        callback.error(message);
+    }
+
+    private void send(PluginResult result) {
+        stats.onMessageSent();
+        result.setKeepCallback(true);
+        callback.sendPluginResult(result);
+    }
+}
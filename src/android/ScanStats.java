@@ -0,0 +1,160 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters and histograms for one scan session, sent to JavaScript by getScanStats.
+ *
+ * callbacks are all the advertisements received by the hardware scan while the session was running,
+ * matched are the ones that passed the session's filters and reported are the ones that were sent.
+ */
+class ScanStats {
+
+    private final long startMillis = SystemClock.elapsedRealtime();
+
+    private long callbacks;
+    private long matched;
+    private long reported;
+    private long duplicatesSuppressed;
+    private long messagesSent;
+
+    // callbacks in the current and the last full second
+    private long rateWindowStart = startMillis;
+    private long rateWindowCount;
+    private long callbacksPerSecond;
+
+    // time spent handling each advertisement in onLeScan and the scanner callback
+    final Histogram callbackMicros = new Histogram();
+    // time spent building the JSON for a result
+    final Histogram jsonMicros = new Histogram();
+    // milliseconds from receiving an advertisement to sending it to JavaScript
+    final Histogram deliveryAgeMillis = new Histogram();
+
+    synchronized void onCallback(long now, long micros) {
+        callbacks++;
+
+        if (now - rateWindowStart >= 1000) {
+            // a gap of more than a second means nothing was received in the last full second
+            callbacksPerSecond = now - rateWindowStart < 2000 ? rateWindowCount : 0;
+            rateWindowStart = now;
+            rateWindowCount = 0;
+        }
+        rateWindowCount++;
+
+        callbackMicros.record(micros);
+    }
+
+    synchronized void onMatched() {
+        matched++;
+    }
+
+    synchronized void onReported() {
+        reported++;
+    }
+
+    synchronized void onDuplicateSuppressed() {
+        duplicatesSuppressed++;
+    }
+
+    synchronized void onMessageSent() {
+        messagesSent++;
+    }
+
+    synchronized JSONObject asJSONObject() {
+        JSONObject json = new JSONObject();
+        long now = SystemClock.elapsedRealtime();
+        long durationMillis = now - startMillis;
+
+        try {
+            json.put("durationMillis", durationMillis);
+            json.put("callbacks", callbacks);
+            json.put("callbacksPerSecond", now - rateWindowStart < 2000 ? callbacksPerSecond : 0);
+            json.put("averageCallbacksPerSecond", durationMillis > 0 ? callbacks * 1000.0 / durationMillis : 0);
+            json.put("matched", matched);
+            json.put("filterHitRate", callbacks > 0 ? (double) matched / callbacks : 0);
+            json.put("reported", reported);
+            json.put("duplicatesSuppressed", duplicatesSuppressed);
+            json.put("messagesSent", messagesSent);
+            json.put("callbackMicros", callbackMicros.asJSONObject());
+            json.put("jsonMicros", jsonMicros.asJSONObject());
+            json.put("deliveryAgeMillis", deliveryAgeMillis.asJSONObject());
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+
+        return json;
+    }
+
+    /**
+     * Power of two buckets. buckets[0] counts 0, buckets[i] counts values from 2^(i-1) to 2^i - 1.
+     */
+    static class Histogram {
+
+        private final long[] buckets = new long[32];
+        private long count;
+        private long total;
+        private long max;
+
+        synchronized void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(value), buckets.length - 1);
+            buckets[bucket]++;
+            count++;
+            total += value;
+            max = Math.max(max, value);
+        }
+
+        // the upper bound of the bucket holding the percentile
+        private long percentile(double fraction) {
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max);
+                }
+            }
+            return max;
+        }
+
+        synchronized JSONObject asJSONObject() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("mean", count > 0 ? (double) total / count : 0);
+            json.put("max", max);
+            json.put("p50", percentile(0.5));
+            json.put("p90", percentile(0.9));
+            json.put("p99", percentile(0.99));
+
+            // trailing empty buckets are left out
+            int last = buckets.length - 1;
+            while (last >= 0 && buckets[last] == 0) {
+                last--;
+            }
+            JSONArray counts = new JSONArray();
+            for (int i = 0; i <= last; i++) {
+                counts.put(buckets[i]);
+            }
+            json.put("buckets", counts);
+            return json;
+        }
+    }
+}
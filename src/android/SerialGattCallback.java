@@ -0,0 +1,156 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * The GATT callback of a Peripheral. Android calls it on a binder thread, each call is posted to the
+ * peripheral's thread so the state machine runs on one thread without locks.
+ *
+ * Characteristic values are copied before posting, the stack reuses the characteristic for the next value.
+ * Notifications are the exception, they are routed on the binder thread: the subscriptions and the recorder are
+ * thread safe and the path doesn't allocate.
+ */
+class SerialGattCallback extends BluetoothGattCallback {
+
+    private final Peripheral peripheral;
+
+    SerialGattCallback(Peripheral peripheral) {
+        this.peripheral = peripheral;
+    }
+
+    @Override
+    public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onConnectionStateChange(gatt, status, newState);
+            }
+        });
+    }
+
+    @Override
+    public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onServicesDiscovered(gatt, status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        peripheral.onCharacteristicChanged(gatt, characteristic);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+        final byte[] value = copy(characteristic.getValue());
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onCharacteristicRead(characteristic, value, status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+        final byte[] value = copy(characteristic.getValue());
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onCharacteristicWrite(characteristic, value, status);
+            }
+        });
+    }
+
+    @Override
+    public void onReliableWriteCompleted(final BluetoothGatt gatt, final int status) {
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onReliableWriteCompleted(gatt, status);
+            }
+        });
+    }
+
+    @Override
+    public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onDescriptorWrite(gatt, descriptor, status);
+            }
+        });
+    }
+
+    @Override
+    public void onReadRemoteRssi(final BluetoothGatt gatt, final int rssi, final int status) {
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onReadRemoteRssi(gatt, rssi, status);
+            }
+        });
+    }
+
+    @Override
+    public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onMtuChanged(gatt, mtu, status);
+            }
+        });
+    }
+
+    @Override
+    public void onPhyUpdate(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onPhyUpdate(gatt, txPhy, rxPhy, status);
+            }
+        });
+    }
+
+    @Override
+    public void onPhyRead(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onPhyRead(gatt, txPhy, rxPhy, status);
+            }
+        });
+    }
+
+    // Hidden in BluetoothGattCallback, called on Android 8.0 and later when the connection interval changes
+    public void onConnectionUpdated(final BluetoothGatt gatt, final int interval, final int latency, final int timeout, final int status) {
+        peripheral.handler().post(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.onConnectionUpdated(gatt, interval, latency, timeout, status);
+            }
+        });
+    }
+
+    private static byte[] copy(byte[] value) {
+        return value != null ? value.clone() : null;
+    }
+}
@@ -0,0 +1,171 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.SparseArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The values of characteristics read with the cache option, so reading them again doesn't use the radio.
+ *
+ * A value is kept for the read's time to live, or until the peripheral disconnects. Writes and notifications to the
+ * characteristic remove it. Values are keyed by the characteristic's instance id like NotificationSubscription, an
+ * entry only matches the characteristic object it was read from, so rediscovering the services invalidates it.
+ *
+ * Cached reads are answered without waiting in the command queue. While a write to the characteristic is queued
+ * or running, the cache isn't used for it and the read waits in the queue behind the write.
+ */
+class ValueCache {
+
+    // time to live of values that are kept until the peripheral disconnects
+    static final long UNTIL_DISCONNECT = Long.MAX_VALUE;
+
+    private static class Entry {
+        final BluetoothGattCharacteristic characteristic;
+        final byte[] value;
+        // SystemClock.elapsedRealtime() when the value expires
+        final long expires;
+
+        Entry(BluetoothGattCharacteristic characteristic, byte[] value, long expires) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final SparseArray<Entry> entries = new SparseArray<Entry>();
+    // writes queued or running for each characteristic UUID
+    private final Map<UUID, Integer> pendingWrites = new HashMap<UUID, Integer>();
+    // lets notifications skip the lock while nothing is cached
+    private volatile int size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    /**
+     * The cache option of read, milliseconds or "static" to keep the value until the peripheral disconnects
+     * @return the time to live, 0 if the read isn't cached
+     * @throws IllegalArgumentException if the option is invalid
+     */
+    static long ttlFromOptions(JSONObject options) {
+        if (options == null || !options.has("cache")) {
+            return 0;
+        }
+        if ("static".equals(options.optString("cache"))) {
+            return UNTIL_DISCONNECT;
+        }
+        long ttl = options.optLong("cache", -1);
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Invalid cache " + options.opt("cache") + ", it must be positive milliseconds or \"static\"");
+        }
+        return ttl;
+    }
+
+    /**
+     * @return the cached value, or null if there is none or it expired
+     */
+    synchronized byte[] get(BluetoothGattCharacteristic characteristic, long now) {
+        if (hasPendingWrite(characteristic)) {
+            misses++;
+            return null;
+        }
+        int index = entries.indexOfKey(characteristic.getInstanceId());
+        if (index >= 0) {
+            Entry entry = entries.valueAt(index);
+            if (entry.characteristic == characteristic && now < entry.expires) {
+                hits++;
+                return entry.value;
+            }
+            entries.removeAt(index);
+            size = entries.size();
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized void put(BluetoothGattCharacteristic characteristic, byte[] value, long ttl, long now) {
+        // the value can be from before the write
+        if (hasPendingWrite(characteristic)) {
+            return;
+        }
+        long expires = ttl == UNTIL_DISCONNECT || now + ttl < 0 ? UNTIL_DISCONNECT : now + ttl;
+        entries.put(characteristic.getInstanceId(), new Entry(characteristic, value, expires));
+        size = entries.size();
+    }
+
+    // the characteristic changed, its value has to be read again
+    void invalidate(BluetoothGattCharacteristic characteristic) {
+        if (size == 0) {
+            return;
+        }
+        synchronized (this) {
+            int index = entries.indexOfKey(characteristic.getInstanceId());
+            if (index >= 0 && entries.valueAt(index).characteristic == characteristic) {
+                entries.removeAt(index);
+                size = entries.size();
+                invalidations++;
+            }
+        }
+    }
+
+    // a write to the characteristic was queued, called before the command is added to the queue
+    synchronized void writeQueued(UUID characteristicUUID) {
+        Integer count = pendingWrites.get(characteristicUUID);
+        pendingWrites.put(characteristicUUID, count == null ? 1 : count + 1);
+
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (entries.valueAt(i).characteristic.getUuid().equals(characteristicUUID)) {
+                entries.removeAt(i);
+                invalidations++;
+            }
+        }
+        size = entries.size();
+    }
+
+    // a write counted by writeQueued finished, failed or was merged into another write
+    synchronized void writeFinished(UUID characteristicUUID) {
+        Integer count = pendingWrites.get(characteristicUUID);
+        if (count == null || count <= 1) {
+            pendingWrites.remove(characteristicUUID);
+        } else {
+            pendingWrites.put(characteristicUUID, count - 1);
+        }
+    }
+
+    private boolean hasPendingWrite(BluetoothGattCharacteristic characteristic) {
+        return !pendingWrites.isEmpty() && pendingWrites.containsKey(characteristic.getUuid());
+    }
+
+    // the peripheral disconnected or its services are discovered again
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("invalidations", invalidations);
+        stats.put("size", entries.size());
+        return stats;
+    }
+}
@@ -0,0 +1,165 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Decodes characteristic values into numbers, see the decoder option of read and startNotification.
+ *
+ * The fields are compiled once into arrays, decoding a value only reads the bytes of each field. A field is an
+ * integer or float at a byte offset. Unsigned integers can be masked and shifted to read bit flags, then every
+ * field is scaled: number = ((raw & mask) >>> shift) * scale + add.
+ *
+ * The numbers are sent as float64 little endian, JavaScript reads them with a Float64Array.
+ * A field past the end of the value is NaN.
+ */
+class ValueDecoder {
+
+    private static final String[] TYPES = { "uint8", "int8", "uint16", "int16", "uint24", "int24", "uint32", "int32", "float32", "float64" };
+    private static final int[] SIZES = { 1, 1, 2, 2, 3, 3, 4, 4, 4, 8 };
+
+    private static final int FLOAT32 = 8;
+    private static final int FLOAT64 = 9;
+
+    private final int[] types;
+    private final int[] offsets;
+    private final boolean[] bigEndian;
+    private final long[] masks;
+    private final int[] shifts;
+    private final double[] scales;
+    private final double[] adds;
+
+    private ValueDecoder(int fields) {
+        types = new int[fields];
+        offsets = new int[fields];
+        bigEndian = new boolean[fields];
+        masks = new long[fields];
+        shifts = new int[fields];
+        scales = new double[fields];
+        adds = new double[fields];
+    }
+
+    /**
+     * Compiles the decoder option, an array of fields
+     *
+     *   { "type": "int16", "offset": 1, "bigEndian": false, "mask": 255, "shift": 0, "scale": 0.01, "add": 0 }
+     *
+     * Only type is required. The offset defaults to the byte after the previous field.
+     *
+     * @return null if the options don't have a decoder
+     * @throws IllegalArgumentException if the decoder is invalid
+     */
+    static ValueDecoder fromOptions(JSONObject options) {
+        if (options == null || !options.has("decoder")) {
+            return null;
+        }
+
+        JSONArray fields = options.optJSONArray("decoder");
+        if (fields == null || fields.length() == 0) {
+            throw new IllegalArgumentException("Invalid decoder, it must be an array of fields");
+        }
+
+        ValueDecoder decoder = new ValueDecoder(fields.length());
+        int offset = 0;
+        for (int i = 0; i < fields.length(); i++) {
+            JSONObject field = fields.optJSONObject(i);
+            if (field == null) {
+                throw new IllegalArgumentException("Invalid decoder field " + i);
+            }
+
+            int type = typeOf(field.optString("type"));
+            offset = field.optInt("offset", offset);
+            if (offset < 0) {
+                throw new IllegalArgumentException("Invalid offset " + offset + " of decoder field " + i);
+            }
+
+            boolean masked = field.has("mask") || field.has("shift");
+            if (masked && (type == FLOAT32 || type == FLOAT64 || isSigned(type))) {
+                throw new IllegalArgumentException("Decoder field " + i + " can't use mask or shift, it isn't an unsigned integer");
+            }
+            int shift = field.optInt("shift", 0);
+            if (shift < 0 || shift >= 32) {
+                throw new IllegalArgumentException("Invalid shift " + shift + " of decoder field " + i);
+            }
+
+            decoder.types[i] = type;
+            decoder.offsets[i] = offset;
+            decoder.bigEndian[i] = field.optBoolean("bigEndian", false);
+            decoder.masks[i] = field.optLong("mask", 0xFFFFFFFFL);
+            decoder.shifts[i] = shift;
+            decoder.scales[i] = field.optDouble("scale", 1);
+            decoder.adds[i] = field.optDouble("add", 0);
+
+            offset += SIZES[type];
+        }
+        return decoder;
+    }
+
+    private static int typeOf(String type) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown decoder type " + type);
+    }
+
+    private static boolean isSigned(int type) {
+        return type < FLOAT32 && type % 2 == 1;
+    }
+
+    /**
+     * @return the numbers, 8 bytes for each field
+     */
+    byte[] decode(byte[] value) {
+        byte[] numbers = new byte[types.length * 8];
+        for (int i = 0; i < types.length; i++) {
+            long bits = Double.doubleToRawLongBits(read(value, i));
+            for (int shift = 0; shift < 64; shift += 8) {
+                numbers[i * 8 + shift / 8] = (byte) (bits >>> shift);
+            }
+        }
+        return numbers;
+    }
+
+    private double read(byte[] value, int field) {
+        int type = types[field];
+        int size = SIZES[type];
+        int offset = offsets[field];
+        if (value == null || offset + size > value.length) {
+            return Double.NaN;
+        }
+
+        long raw = 0;
+        for (int i = 0; i < size; i++) {
+            int index = bigEndian[field] ? offset + size - 1 - i : offset + i;
+            raw |= (value[index] & 0xFFL) << (8 * i);
+        }
+
+        double number;
+        if (type == FLOAT32) {
+            number = Float.intBitsToFloat((int) raw);
+        } else if (type == FLOAT64) {
+            number = Double.longBitsToDouble(raw);
+        } else if (isSigned(type)) {
+            // sign extend
+            int unused = 64 - 8 * size;
+            number = (raw << unused) >> unused;
+        } else {
+            number = (raw & masks[field]) >>> shifts[field];
+        }
+        return number * scales[field] + adds[field];
+    }
+}
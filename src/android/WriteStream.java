@@ -0,0 +1,108 @@
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * A buffer written as a run of writeWithoutResponse packets, see Peripheral.queueWriteStream.
+ *
+ * Packets are written without going back to JavaScript. Android's BluetoothGatt refuses every write, whatever the
+ * write type, until onCharacteristicWrite confirms the previous one, so one packet is written per confirmation.
+ * The stack only refuses a write with nothing in flight when it is busy with something else, those writes are
+ * retried with a growing delay and counted, the stream fails after too many refusals in a row.
+ */
+class WriteStream {
+
+    private final byte[] data;
+    // the packetSize option, 0 to use the MTU when the stream starts
+    private final int requestedPacketSize;
+    private int packetSize;
+
+    private int offset = 0;
+    private boolean inFlight = false;
+
+    private int packets = 0;
+    private int retries = 0;
+    private int busyInARow = 0;
+    private long startNanos;
+
+    WriteStream(byte[] data, JSONObject options) {
+        if (options == null) {
+            options = new JSONObject();
+        }
+        this.data = data;
+        this.requestedPacketSize = Math.max(0, options.optInt("packetSize", 0));
+    }
+
+    /**
+     * @param defaultPacketSize bytes per write without the packetSize option, the MTU minus 3 bytes for the ATT header
+     */
+    void start(long now, int defaultPacketSize) {
+        startNanos = now;
+        packetSize = Math.max(1, requestedPacketSize > 0 ? requestedPacketSize : defaultPacketSize);
+    }
+
+    boolean canSend() {
+        return offset < data.length && !inFlight;
+    }
+
+    boolean isFinished() {
+        return offset >= data.length && !inFlight;
+    }
+
+    byte[] nextPacket() {
+        return Arrays.copyOfRange(data, offset, Math.min(offset + packetSize, data.length));
+    }
+
+    void onSent(int length) {
+        offset += length;
+        inFlight = true;
+        packets++;
+        busyInARow = 0;
+    }
+
+    /**
+     * The stack refused the write while it was busy with another operation
+     * @return the number of refusals in a row
+     */
+    int onBusy() {
+        retries++;
+        return ++busyInARow;
+    }
+
+    void onConfirmed() {
+        inFlight = false;
+    }
+
+    JSONObject asJSONObject(long now) {
+        JSONObject json = new JSONObject();
+        long nanos = now - startNanos;
+
+        try {
+            json.put("bytes", data.length);
+            json.put("packets", packets);
+            json.put("packetSize", packetSize);
+            json.put("durationMillis", nanos / 1000000);
+            json.put("bytesPerSecond", nanos > 0 ? (long) (data.length * 1e9 / nanos) : 0);
+            json.put("retries", retries);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+
+        return json;
+    }
+}
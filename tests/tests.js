@@ -9,6 +9,152 @@ exports.defineAutoTests = function () {
             expect(typeof ble.startScan).toBeDefined();
             expect(typeof ble.startScan).toBe("function");
         });
+
+        it("should contain scan session functions", function () {
+            expect(typeof ble.startScanSession).toBe("function");
+            expect(typeof ble.stopScanSession).toBe("function");
+        });
+
+        it("should contain batch and stream functions", function () {
+            expect(typeof ble.readMany).toBe("function");
+            expect(typeof ble.reliableWrite).toBe("function");
+            expect(typeof ble.writeStream).toBe("function");
+        });
+
+        it("should contain connection parameter functions", function () {
+            expect(typeof ble.requestConnectionPriority).toBe("function");
+            expect(typeof ble.setPreferredPhy).toBe("function");
+        });
+
+        it("should contain recording functions", function () {
+            expect(typeof ble.startRecording).toBe("function");
+            expect(typeof ble.stopRecording).toBe("function");
+            expect(typeof ble.readRecording).toBe("function");
+            expect(typeof ble.deleteRecording).toBe("function");
+        });
+
+        it("should contain stats functions", function () {
+            expect(typeof ble.getNotificationStats).toBe("function");
+            expect(typeof ble.getCacheStats).toBe("function");
+        });
+
+        it("should contain promise versions of the new functions", function () {
+            expect(typeof ble.withPromises.readMany).toBe("function");
+            expect(typeof ble.withPromises.reliableWrite).toBe("function");
+            expect(typeof ble.withPromises.writeStream).toBe("function");
+            expect(typeof ble.withPromises.startRecording).toBe("function");
+            expect(typeof ble.withPromises.stopRecording).toBe("function");
+            expect(typeof ble.withPromises.readRecording).toBe("function");
+            expect(typeof ble.withPromises.deleteRecording).toBe("function");
+            expect(typeof ble.withPromises.getNotificationStats).toBe("function");
+            expect(typeof ble.withPromises.getCacheStats).toBe("function");
+        });
+    });
+
+    // the fixtures are the bytes the Android code sends, see the format in
+    // ScanFrameEncoder.java, NotificationBatch.java and NotificationRecorder.java
+    describe('Binary decoders', function () {
+
+        function bytes(buffer) {
+            return Array.prototype.slice.call(new Uint8Array(buffer));
+        }
+
+        it("should decode a scan frame", function () {
+            var frame = new Uint8Array([
+                0x01, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x40, 0x8F, 0x40, // version 1, 3 records, start 1000
+                0x00, 0x01, 0x00, 0xC4, 0x05, 0x00, 0x00, 0x00,                         // new device 1, rssi -60, +5 ms
+                0xAA, 0xBB, 0xCC, 0xDD, 0xEE, 0x01,                                     // MAC address
+                0x02, 0x00, 0x02, 0x01,                                                 // advertising data
+                0x01, 0x01, 0x00, 0xC3, 0x0A, 0x00, 0x00, 0x00,                         // device 1 advertising, rssi -61, +10 ms
+                0x03, 0x00, 0x03, 0x02, 0x01,                                           // advertising data
+                0x02, 0x01, 0x00, 0xC2, 0x14, 0x00, 0x00, 0x00                          // device 1 rssi only, rssi -62, +20 ms
+            ]).buffer;
+            var devices = {};
+
+            var peripherals = ble._decoders.decodeScanFrame(frame, devices);
+
+            expect(peripherals.length).toBe(3);
+            expect(peripherals[0].id).toBe("AA:BB:CC:DD:EE:01");
+            expect(peripherals[0].rssi).toBe(-60);
+            expect(peripherals[0].timestamp).toBe(1005);
+            expect(bytes(peripherals[0].advertising)).toEqual([0x02, 0x01]);
+            expect(peripherals[1].id).toBe("AA:BB:CC:DD:EE:01");
+            expect(peripherals[1].rssi).toBe(-61);
+            expect(peripherals[1].timestamp).toBe(1010);
+            expect(bytes(peripherals[1].advertising)).toEqual([0x03, 0x02, 0x01]);
+            expect(peripherals[2].rssi).toBe(-62);
+            expect(peripherals[2].timestamp).toBe(1020);
+            expect(peripherals[2].advertising).toBe(peripherals[1].advertising);
+            expect(devices[1]).toBe(peripherals[2]);
+        });
+
+        it("should forget scan frame device ids after a reset", function () {
+            var frame = new Uint8Array([
+                0x01, 0x01, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x40, 0x8F, 0x40, // version 1, reset, 1 record
+                0x02, 0x01, 0x00, 0xC4, 0x00, 0x00, 0x00, 0x00                          // device 1 rssi only
+            ]).buffer;
+            var devices = { 1: { id: "AA:BB:CC:DD:EE:01", advertising: new ArrayBuffer(0) } };
+
+            expect(function () {
+                ble._decoders.decodeScanFrame(frame, devices);
+            }).toThrow();
+        });
+
+        it("should reject an unknown scan frame version", function () {
+            var frame = new Uint8Array([0x02, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00]).buffer;
+
+            expect(function () {
+                ble._decoders.decodeScanFrame(frame, {});
+            }).toThrow();
+        });
+
+        it("should decode a notification batch", function () {
+            var batch = new Uint8Array([
+                0x01, 0x00, 0x02, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x40, 0x9F, 0x40, // version 1, 2 packets, first 2000
+                0x00, 0x00, 0x00, 0x00, 0x03, 0x00, 0x01, 0x02, 0x03,                   // +0 ms, 3 bytes
+                0x07, 0x00, 0x00, 0x00, 0x01, 0x00, 0xFF                                // +7 ms, 1 byte
+            ]).buffer;
+
+            var packets = ble._decoders.decodeNotificationBatch(batch);
+
+            expect(packets.length).toBe(2);
+            expect(packets[0].timestamp).toBe(2000);
+            expect(bytes(packets[0].value)).toEqual([0x01, 0x02, 0x03]);
+            expect(packets[1].timestamp).toBe(2007);
+            expect(bytes(packets[1].value)).toEqual([0xFF]);
+        });
+
+        it("should decode a recording page", function () {
+            var page = {
+                id: "recording",
+                startTime: 3000,
+                characteristics: [
+                    { service: "180d", characteristic: "2a37" },
+                    { service: "180f", characteristic: "2a19" }
+                ],
+                segment: 0,
+                offset: 24,
+                records: 2,
+                // 1500000 ns, handle 1, [0x0A, 0x0B] then 4294967296 ns, handle 0, no value
+                data: { CDVType: "ArrayBuffer", data: "YOMWAAAAAAABAAIACgsAAAAAAQAAAAAAAAA=" },
+                next: null
+            };
+
+            var decoded = ble._decoders.decodeRecordingPage(page);
+
+            expect(decoded.id).toBe("recording");
+            expect(decoded.next).toBe(null);
+            expect(decoded.records.length).toBe(2);
+            expect(decoded.records[0].elapsedNanos).toBe(1500000);
+            expect(decoded.records[0].timestamp).toBe(3001.5);
+            expect(decoded.records[0].service).toBe("180f");
+            expect(decoded.records[0].characteristic).toBe("2a19");
+            expect(bytes(decoded.records[0].value)).toEqual([0x0A, 0x0B]);
+            expect(decoded.records[1].elapsedNanos).toBe(4294967296);
+            expect(decoded.records[1].service).toBe("180d");
+            expect(decoded.records[1].characteristic).toBe("2a37");
+            expect(bytes(decoded.records[1].value)).toEqual([]);
+        });
     });
 
 };
@@ -27,6 +27,31 @@ var base64ToArrayBuffer = function(b64) {
     return stringToArrayBuffer(atob(b64));
 };
 
+// accepts an ArrayBuffer, typed array or array of bytes
+var toBase64 = function(data) {
+    var bytes = data instanceof ArrayBuffer ? new Uint8Array(data) : data;
+    var binary = '';
+    for (var i = 0; i < bytes.length; i++) {
+        binary += String.fromCharCode(bytes[i] & 0xFF);
+    }
+    return btoa(binary);
+};
+
+// scan filters are passed as options, so binary values need to be encoded before going to native code
+function encodeScanFilters(filters) {
+    return filters.map(function(filter) {
+        var encoded = {};
+        Object.keys(filter).forEach(function (key) {
+            var value = filter[key];
+            if (/^(manufacturerData|serviceData)(Mask)?$/.test(key) && typeof(value) !== 'string') {
+                value = toBase64(value);
+            }
+            encoded[key] = value;
+        });
+        return encoded;
+    });
+}
+
 function massageMessageNativeToJs(message) {
     if (message.CDVType == 'ArrayBuffer') {
         message = base64ToArrayBuffer(message.data);
@@ -46,6 +71,146 @@ function convertToNativeJS(object) {
     });
 }
 
+// Decodes the binary scan frames sent when startScanWithOptions is called with binary: true.
+// The format is documented in ScanFrameEncoder.java, keep them in sync.
+// devices maps the per-scan device id to the last peripheral reported for it.
+function decodeScanFrame(buffer, devices) {
+    var view = new DataView(buffer);
+    var bytes = new Uint8Array(buffer);
+    var version = view.getUint8(0);
+    if (version !== 1) {
+        throw new Error('Unsupported scan frame version ' + version);
+    }
+    if (view.getUint8(1) & 0x01) { // device ids were reset
+        Object.keys(devices).forEach(function (id) {
+            delete devices[id];
+        });
+    }
+    var count = view.getUint16(2, true);
+    var scanStart = view.getFloat64(4, true);
+    var offset = 12;
+    var peripherals = [];
+
+    for (var i = 0; i < count; i++) {
+        var type = view.getUint8(offset);
+        var deviceId = view.getUint16(offset + 1, true);
+        var rssi = view.getInt8(offset + 3);
+        var timestamp = scanStart + view.getUint32(offset + 4, true);
+        offset += 8;
+
+        var previous = devices[deviceId];
+        var id;
+        var advertising;
+
+        if (type === 0) { // new device
+            var mac = [];
+            for (var j = 0; j < 6; j++) {
+                mac.push(('0' + bytes[offset + j].toString(16).toUpperCase()).slice(-2));
+            }
+            id = mac.join(':');
+            offset += 6;
+        } else if (previous) {
+            id = previous.id;
+        } else {
+            throw new Error('Unknown device ' + deviceId + ' in scan frame');
+        }
+
+        if (type === 2) { // rssi only, the advertising data didn't change
+            advertising = previous.advertising;
+        } else {
+            var length = view.getUint16(offset, true);
+            offset += 2;
+            advertising = buffer.slice(offset, offset + length);
+            offset += length;
+        }
+
+        var peripheral = { id: id, rssi: rssi, timestamp: timestamp, advertising: advertising };
+        devices[deviceId] = peripheral;
+        peripherals.push(peripheral);
+    }
+
+    return peripherals;
+}
+
+// Decodes the notification batches sent when startNotification is called with batchInterval or batchSize.
+// The format is documented in NotificationBatch.java, keep them in sync.
+function decodeNotificationBatch(buffer) {
+    var view = new DataView(buffer);
+    var version = view.getUint8(0);
+    if (version !== 1) {
+        throw new Error('Unsupported notification batch version ' + version);
+    }
+    var count = view.getUint16(2, true);
+    var firstTime = view.getFloat64(4, true);
+    var offset = 12;
+    var packets = [];
+
+    for (var i = 0; i < count; i++) {
+        var timestamp = firstTime + view.getUint32(offset, true);
+        var length = view.getUint16(offset + 4, true);
+        offset += 6;
+        packets.push({ timestamp: timestamp, value: buffer.slice(offset, offset + length) });
+        offset += length;
+    }
+
+    return packets;
+}
+
+// Decodes a page read by readRecording into records.
+// The format is documented in NotificationRecorder.java, keep them in sync.
+function decodeRecordingPage(page) {
+    var buffer = massageMessageNativeToJs(page.data);
+    var view = new DataView(buffer);
+    var offset = 0;
+    var records = [];
+
+    for (var i = 0; i < page.records; i++) {
+        // int64 nanoseconds, exact up to 104 days
+        var nanos = view.getUint32(offset, true) + view.getInt32(offset + 4, true) * 4294967296;
+        var characteristic = page.characteristics[view.getUint16(offset + 8, true)];
+        var length = view.getUint16(offset + 10, true);
+        offset += 12;
+        records.push({
+            timestamp: page.startTime + nanos / 1000000,
+            elapsedNanos: nanos,
+            service: characteristic.service,
+            characteristic: characteristic.characteristic,
+            value: buffer.slice(offset, offset + length)
+        });
+        offset += length;
+    }
+
+    return { id: page.id, records: records, next: page.next };
+}
+
+// each scan gets its own wrapper, binary frames use device ids that are only valid for that scan
+function scanResultWrapper(success) {
+    var devices = {};
+    return function(peripheral) {
+        if (peripheral instanceof ArrayBuffer) { // binary scan frame
+            success(decodeScanFrame(peripheral, devices));
+            return;
+        }
+        convertToNativeJS(peripheral);
+        success(peripheral);
+    };
+}
+
+function encodeScanOptions(options) {
+    options = options || {};
+    if (options.filters) {
+        var copy = {};
+        Object.keys(options).forEach(function (key) {
+            copy[key] = options[key];
+        });
+        copy.filters = encodeScanFilters(options.filters);
+        options = copy;
+    }
+    return options;
+}
+
+var nextScanSessionId = 1;
+
 // set of auto-connected device ids
 var autoconnected = {};
 
@@ -72,12 +237,24 @@ module.exports = {
     },
 
     startScanWithOptions: function(services, options, success, failure) {
-        var successWrapper = function(peripheral) {
-            convertToNativeJS(peripheral);
-            success(peripheral);
-        };
-        options = options || {};
-        cordova.exec(successWrapper, failure, 'BLE', 'startScanWithOptions', [services, options]);
+        cordova.exec(scanResultWrapper(success), failure, 'BLE', 'startScanWithOptions', [services, encodeScanOptions(options)]);
+    },
+
+    // Android only, returns the session id for stopScanSession
+    startScanSession: function(services, options, success, failure) {
+        var sessionId = 'session' + (nextScanSessionId++);
+        cordova.exec(scanResultWrapper(success), failure, 'BLE', 'startScanSession', [sessionId, services, encodeScanOptions(options)]);
+        return sessionId;
+    },
+
+    // Android only
+    stopScanSession: function(sessionId, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'stopScanSession', [sessionId]);
+    },
+
+    // Android only
+    getScanStats: function(success, failure) {
+        cordova.exec(success, failure, 'BLE', 'getScanStats', []);
     },
 
     // iOS only
@@ -95,6 +272,11 @@ module.exports = {
         cordova.exec(success, failure, 'BLE', 'bondedDevices', []);
     },
 
+    // Android only
+    peripheralRegistryStats: function(success, failure) {
+        cordova.exec(success, failure, 'BLE', 'peripheralRegistryStats', []);
+    },
+
     // this will probably be removed
     list: function (success, failure) {
         cordova.exec(success, failure, 'BLE', 'list', []);
@@ -109,6 +291,15 @@ module.exports = {
         cordova.exec(successWrapper, failure, 'BLE', 'connect', [device_id]);    
     },
 
+    // Android only
+    connectWithOptions: function (device_id, options, success, failure) {
+        var successWrapper = function(peripheral) {
+            convertToNativeJS(peripheral);
+            success(peripheral);
+        };
+        cordova.exec(successWrapper, failure, 'BLE', 'connectWithOptions', [device_id, options || {}]);
+    },
+
     autoConnect: function (deviceId, connectCallback, disconnectCallback) {
         var disconnectCallbackWrapper;
         autoconnected[deviceId] = true;
@@ -146,10 +337,21 @@ module.exports = {
         cordova.exec(success, failure, 'BLE', 'disconnect', [device_id]);
     },
 
+    // success is called with the negotiated MTU
     requestMtu: function (device_id, mtu,  success, failure) {
         cordova.exec(success, failure, 'BLE', 'requestMtu', [device_id, mtu]);
     },
 
+    // Android only, priority is 'high', 'balanced' or 'lowPower'
+    requestConnectionPriority: function (device_id, priority, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'requestConnectionPriority', [device_id, priority]);
+    },
+
+    // Android only, phy is '1M', '2M', 'coded', 'codedS2' or 'codedS8'
+    setPreferredPhy: function (device_id, phy, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'setPreferredPhy', [device_id, phy]);
+    },
+
     refreshDeviceCache: function(deviceId, timeoutMillis, success, failure) {
         var successWrapper = function(peripheral) {
             convertToNativeJS(peripheral);
@@ -159,23 +361,59 @@ module.exports = {
     },
 
     // characteristic value comes back as ArrayBuffer in the success callback
-    read: function (device_id, service_uuid, characteristic_uuid, success, failure) {
-        cordova.exec(success, failure, 'BLE', 'read', [device_id, service_uuid, characteristic_uuid]);
+    // options are Android only, see the command options in the README
+    // on Android, with the decoder option, success is called with a Float64Array
+    read: function (device_id, service_uuid, characteristic_uuid, success, failure, options) {
+        var onRead = success;
+        if (cordova.platformId === 'android' && options && options.decoder !== undefined) {
+            onRead = function(buffer) {
+                success(new Float64Array(buffer));
+            };
+        }
+        cordova.exec(onRead, failure, 'BLE', 'read', [device_id, service_uuid, characteristic_uuid, options]);
+    },
+
+    // Android only, characteristics is an array of {service: uuid, characteristic: uuid}
+    // success is called with an array of {service, characteristic, value} or {service, characteristic, error}
+    readMany: function (device_id, characteristics, success, failure, options) {
+        var successWrapper = function(results) {
+            convertToNativeJS(results);
+            success(results);
+        };
+        cordova.exec(successWrapper, failure, 'BLE', 'readMany', [device_id, characteristics, options]);
     },
 
     // RSSI value comes back as an integer
-    readRSSI: function(device_id, success, failure) {
-        cordova.exec(success, failure, 'BLE', 'readRSSI', [device_id]);
+    readRSSI: function(device_id, success, failure, options) {
+        cordova.exec(success, failure, 'BLE', 'readRSSI', [device_id, options]);
     },
 
     // value must be an ArrayBuffer
-    write: function (device_id, service_uuid, characteristic_uuid, value, success, failure) {
-        cordova.exec(success, failure, 'BLE', 'write', [device_id, service_uuid, characteristic_uuid, value]);
+    write: function (device_id, service_uuid, characteristic_uuid, value, success, failure, options) {
+        cordova.exec(success, failure, 'BLE', 'write', [device_id, service_uuid, characteristic_uuid, value, options]);
     },
 
     // value must be an ArrayBuffer
-    writeWithoutResponse: function (device_id, service_uuid, characteristic_uuid, value, success, failure) {
-        cordova.exec(success, failure, 'BLE', 'writeWithoutResponse', [device_id, service_uuid, characteristic_uuid, value]);
+    writeWithoutResponse: function (device_id, service_uuid, characteristic_uuid, value, success, failure, options) {
+        cordova.exec(success, failure, 'BLE', 'writeWithoutResponse', [device_id, service_uuid, characteristic_uuid, value, options]);
+    },
+
+    // Android only, writes is an array of {service: uuid, characteristic: uuid, value: ArrayBuffer}
+    // the peripheral applies all the values or none of them
+    reliableWrite: function (device_id, writes, success, failure, options) {
+        var encoded = writes.map(function(write) {
+            return {
+                service: write.service,
+                characteristic: write.characteristic,
+                value: toBase64(write.value)
+            };
+        });
+        cordova.exec(success, failure, 'BLE', 'reliableWrite', [device_id, encoded, options]);
+    },
+
+    // Android only, value must be an ArrayBuffer, success is called with the stream statistics
+    writeStream: function (device_id, service_uuid, characteristic_uuid, value, success, failure, options) {
+        cordova.exec(success, failure, 'BLE', 'writeStream', [device_id, service_uuid, characteristic_uuid, value, options]);
     },
 
     // value must be an ArrayBuffer
@@ -191,13 +429,70 @@ module.exports = {
     },
 
     // success callback is called on notification
-    startNotification: function (device_id, service_uuid, characteristic_uuid, success, failure) {
-        cordova.exec(success, failure, 'BLE', 'startNotification', [device_id, service_uuid, characteristic_uuid]);
+    // on Android, with the batchInterval or batchSize options, success is called with an array of packets
+    // and with the decoder option, values are Float64Arrays
+    startNotification: function (device_id, service_uuid, characteristic_uuid, success, failure, options) {
+        var onNotification = success;
+        if (cordova.platformId === 'android' && options) {
+            var batched = options.batchInterval !== undefined || options.batchSize !== undefined;
+            var buffered = options.bufferSize !== undefined || options.overflow !== undefined;
+            var decoded = options.decoder !== undefined;
+            onNotification = function(data) {
+                try {
+                    if (batched) {
+                        var packets = decodeNotificationBatch(data);
+                        if (decoded) {
+                            packets.forEach(function(packet) {
+                                packet.value = new Float64Array(packet.value);
+                            });
+                        }
+                        success(packets);
+                    } else {
+                        success(decoded ? new Float64Array(data) : data);
+                    }
+                } finally {
+                    // the plugin holds back messages until the earlier ones are handled
+                    if (buffered) {
+                        cordova.exec(null, null, 'BLE', 'notificationAck', [device_id, service_uuid, characteristic_uuid]);
+                    }
+                }
+            };
+        }
+        cordova.exec(onNotification, failure, 'BLE', 'startNotification', [device_id, service_uuid, characteristic_uuid, options]);
     },
 
     // success callback is called when the descriptor 0x2902 is written
-    stopNotification: function (device_id, service_uuid, characteristic_uuid, success, failure) {
-        cordova.exec(success, failure, 'BLE', 'stopNotification', [device_id, service_uuid, characteristic_uuid]);
+    stopNotification: function (device_id, service_uuid, characteristic_uuid, success, failure, options) {
+        cordova.exec(success, failure, 'BLE', 'stopNotification', [device_id, service_uuid, characteristic_uuid, options]);
+    },
+
+    getNotificationStats: function (device_id, service_uuid, characteristic_uuid, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'getNotificationStats', [device_id, service_uuid, characteristic_uuid]);
+    },
+
+    getCacheStats: function (device_id, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'getCacheStats', [device_id]);
+    },
+
+    // characteristics is an array of {service, characteristic}
+    startRecording: function (device_id, characteristics, success, failure, options) {
+        cordova.exec(success, failure, 'BLE', 'startRecording', [device_id, characteristics, options]);
+    },
+
+    stopRecording: function (device_id, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'stopRecording', [device_id]);
+    },
+
+    // cursor is the next property of the previous page, or undefined to start at the oldest record
+    readRecording: function (recording_id, cursor, success, failure, options) {
+        var successWrapper = function(page) {
+            success(decodeRecordingPage(page));
+        };
+        cordova.exec(successWrapper, failure, 'BLE', 'readRecording', [recording_id, cursor, options]);
+    },
+
+    deleteRecording: function (recording_id, success, failure) {
+        cordova.exec(success, failure, 'BLE', 'deleteRecording', [recording_id]);
     },
 
     isConnected: function (device_id, success, failure) {
@@ -230,11 +525,20 @@ module.exports = {
 
 };
 
+// not part of the API, the decoders are exported for tests/tests.js
+module.exports._decoders = {
+    decodeScanFrame: decodeScanFrame,
+    decodeNotificationBatch: decodeNotificationBatch,
+    decodeRecordingPage: decodeRecordingPage
+};
+
 module.exports.withPromises = {
     scan: module.exports.scan,
     startScan: module.exports.startScan,
     startScanWithOptions: module.exports.startScanWithOptions,
+    startScanSession: module.exports.startScanSession,
     connect: module.exports.connect,
+    connectWithOptions: module.exports.connectWithOptions,
     startNotification: module.exports.startNotification,
     startStateNotifications: module.exports.startStateNotifications,
 
@@ -244,33 +548,93 @@ module.exports.withPromises = {
         });
     },
 
+    stopScanSession: function(sessionId) {
+        return new Promise(function(resolve, reject) {
+            module.exports.stopScanSession(sessionId, resolve, reject);
+        });
+    },
+
     disconnect: function(device_id) {
         return new Promise(function(resolve, reject) {
             module.exports.disconnect(device_id, resolve, reject);
         });
     },
 
-    read: function(device_id, service_uuid, characteristic_uuid) {
+    read: function(device_id, service_uuid, characteristic_uuid, options) {
+        return new Promise(function(resolve, reject) {
+            module.exports.read(device_id, service_uuid, characteristic_uuid, resolve, reject, options);
+        });
+    },
+
+    readMany: function(device_id, characteristics, options) {
+        return new Promise(function(resolve, reject) {
+            module.exports.readMany(device_id, characteristics, resolve, reject, options);
+        });
+    },
+
+    write: function(device_id, service_uuid, characteristic_uuid, value, options) {
+        return new Promise(function(resolve, reject) {
+            module.exports.write(device_id, service_uuid, characteristic_uuid, value, resolve, reject, options);
+        });
+    },
+
+    writeWithoutResponse: function (device_id, service_uuid, characteristic_uuid, value, options) {
+        return new Promise(function(resolve, reject) {
+            module.exports.writeWithoutResponse(device_id, service_uuid, characteristic_uuid, value, resolve, reject, options);
+        });
+    },
+
+    reliableWrite: function (device_id, writes, options) {
+        return new Promise(function(resolve, reject) {
+            module.exports.reliableWrite(device_id, writes, resolve, reject, options);
+        });
+    },
+
+    writeStream: function (device_id, service_uuid, characteristic_uuid, value, options) {
+        return new Promise(function(resolve, reject) {
+            module.exports.writeStream(device_id, service_uuid, characteristic_uuid, value, resolve, reject, options);
+        });
+    },
+
+    stopNotification: function (device_id, service_uuid, characteristic_uuid, options) {
+        return new Promise(function(resolve, reject) {
+            module.exports.stopNotification(device_id, service_uuid, characteristic_uuid, resolve, reject, options);
+        });
+    },
+
+    getNotificationStats: function (device_id, service_uuid, characteristic_uuid) {
+        return new Promise(function(resolve, reject) {
+            module.exports.getNotificationStats(device_id, service_uuid, characteristic_uuid, resolve, reject);
+        });
+    },
+
+    getCacheStats: function (device_id) {
+        return new Promise(function(resolve, reject) {
+            module.exports.getCacheStats(device_id, resolve, reject);
+        });
+    },
+
+    startRecording: function (device_id, characteristics, options) {
         return new Promise(function(resolve, reject) {
-            module.exports.read(device_id, service_uuid, characteristic_uuid, resolve, reject);
+            module.exports.startRecording(device_id, characteristics, resolve, reject, options);
         });
     },
 
-    write: function(device_id, service_uuid, characteristic_uuid, value) {
+    stopRecording: function (device_id) {
         return new Promise(function(resolve, reject) {
-            module.exports.write(device_id, service_uuid, characteristic_uuid, value, resolve, reject);
+            module.exports.stopRecording(device_id, resolve, reject);
         });
     },
 
-    writeWithoutResponse: function (device_id, service_uuid, characteristic_uuid, value) {
+    readRecording: function (recording_id, cursor, options) {
         return new Promise(function(resolve, reject) {
-            module.exports.writeWithoutResponse(device_id, service_uuid, characteristic_uuid, value, resolve, reject);
+            module.exports.readRecording(recording_id, cursor, resolve, reject, options);
         });
     },
 
-    stopNotification: function (device_id, service_uuid, characteristic_uuid) {
+    deleteRecording: function (recording_id) {
         return new Promise(function(resolve, reject) {
-            module.exports.stopNotification(device_id, service_uuid, characteristic_uuid, resolve, reject);
+            module.exports.deleteRecording(recording_id, resolve, reject);
         });
     },
 
@@ -304,9 +668,9 @@ module.exports.withPromises = {
         });
     },
 
-    readRSSI: function(device_id) {
+    readRSSI: function(device_id, options) {
         return new Promise(function(resolve, reject) {
-            module.exports.readRSSI(device_id, resolve, reject);
+            module.exports.readRSSI(device_id, resolve, reject, options);
         });
     }
 };